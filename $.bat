@@ -41,11 +41,13 @@ if "%1" == "mkdir" (
         exit /b 1
     )
     curl "http://localhost:808%2/dump"
+) else if "%1" == "stats" (
+    curl "http://localhost:8000/stats"
 ) else if "%1" == "tree" (
     curl "http://localhost:8000/tree?path=/"
 ) else if "%1" == "fulltree" (
     curl "http://localhost:8000/fulltree?path=/"
 ) else (
     echo Usage: dfs ^<command^> [args]
-    echo Commands: mkdir, touch, readdir, stat, rm, cluster, dump, tree, fulltree
+    echo Commands: mkdir, touch, readdir, stat, rm, cluster, dump, stats, tree, fulltree
 )
@@ -0,0 +1,285 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Admission control for the metadata servers and the router. Work is bounded at every step, so a
+// burst is turned away quickly instead of making every request slow:
+// - a fixed number of workers with a bounded queue; when both are full the request is rejected
+//   right away on the accepting thread (503), and a request that waited in the queue longer than
+//   clients are willing to wait is dropped before doing any work (503)
+// - a cap on the requests one client has in flight (429)
+// - a concurrency limit per operation that adapts to latency (AIMD): it grows by one per round of
+//   fast requests and shrinks by a factor when requests get slower than the target (503); time a
+//   request spends waiting for read leases is not its own slowness and does not count, at the
+//   router neither (servers report it in X-Lease-Wait-Ms)
+// - endpoints outside of these limits (probes, metrics, streams) are still turned away when the
+//   queue is full, nothing but a rejection ever runs on the accepting thread
+// Every rejection carries Retry-After, so well-behaved clients back off instead of hammering.
+public class AdmissionController {
+    static final String RETRY_AFTER_SECONDS = "1";
+    static final int BACKLOG = intEnv("ACCEPT_BACKLOG", 128); // connections waiting to be accepted
+
+    private static final int WORKERS = intEnv("MAX_WORKERS", 64); // requests handled at the same time
+    private static final int QUEUE = intEnv("MAX_QUEUE", 256); // requests waiting for a worker
+    static final long MAX_QUEUE_WAIT_MS = intEnv("MAX_QUEUE_WAIT_MS", 1000); // older ones are dropped
+    private static final int CLIENT_LIMIT = intEnv("CLIENT_MAX_INFLIGHT", 32); // per client
+    private static final long TARGET_LATENCY_MS = intEnv("TARGET_LATENCY_MS", 250); // AIMD target
+    private static final int MIN_LIMIT = 2; // an operation is never shut out completely
+    private static final double BACKOFF = 0.8; // multiplicative decrease
+
+    private final String name; // for the stats output
+    private final boolean byAddress; // clients without an id are told apart by address
+    private final ThreadPoolExecutor workers;
+    private final Map<String, Integer> clients = new ConcurrentHashMap<>(); // client -> requests in flight
+    private final Map<String, Limiter> operations = new ConcurrentHashMap<>(); // op -> adaptive limit
+
+    // Set while a request runs on the accepting thread because the queue was full / when it was queued
+    private final ThreadLocal<Boolean> shedding = new ThreadLocal<>();
+    private final ThreadLocal<Long> queuedAt = new ThreadLocal<>();
+    private final ThreadLocal<long[]> waited = ThreadLocal.withInitial(() -> new long[1]); // ns, see waitedFor
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedQueueFull = new AtomicLong();
+    private final AtomicLong rejectedExpired = new AtomicLong();
+    private final AtomicLong rejectedClient = new AtomicLong();
+    private final AtomicLong rejectedOperation = new AtomicLong();
+
+    // 1. Constructor
+    public AdmissionController(String name, boolean byAddress) {
+        this.name = name;
+        this.byAddress = byAddress;
+        this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE));
+    }
+
+    // 2. Executor for the http server: never throws, a request that does not fit is run on the
+    // accepting thread in shedding mode, where admit() answers 503 without doing any work
+    public Executor executor() {
+        return task -> {
+            long enqueued = System.nanoTime();
+            try {
+                workers.execute(() -> {
+                    queuedAt.set(enqueued);
+                    try {
+                        task.run();
+                    } finally {
+                        queuedAt.remove();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                shedding.set(Boolean.TRUE);
+                try {
+                    task.run();
+                } finally {
+                    shedding.remove();
+                }
+            }
+        };
+    }
+
+    // workers for the binary protocol, it answers 503 itself when they reject a request
+    public ExecutorService workers() {
+        return workers;
+    }
+
+    // 3. Wrapping a handler: the checks run in order, cheapest first
+    public HttpHandler admit(String op, HttpHandler handler) {
+        return exchange -> {
+            // 3.1 No room in the queue: answer at once, the accepting thread has to get back to work
+            if (shedding.get() != null) {
+                rejectedQueueFull.incrementAndGet();
+                reject(exchange, 503, "Server overloaded, retry later");
+                return;
+            }
+
+            // 3.2 Waited so long in the queue that the client has probably given up
+            Long enqueued = queuedAt.get();
+            if (enqueued != null && (System.nanoTime() - enqueued) / 1_000_000 > MAX_QUEUE_WAIT_MS) {
+                rejectedExpired.incrementAndGet();
+                reject(exchange, 503, "Server overloaded, retry later");
+                return;
+            }
+
+            // 3.3 One client may not take all the workers
+            String client = clientOf(exchange);
+            if (client != null && !acquireClient(client)) {
+                rejectedClient.incrementAndGet();
+                reject(exchange, 429, "Too many requests from client " + client);
+                return;
+            }
+            try {
+                Limiter limiter = operations.computeIfAbsent(op, o -> new Limiter());
+                if (!limiter.tryAcquire()) {
+                    rejectedOperation.incrementAndGet();
+                    reject(exchange, 503, "Too many concurrent " + op + " requests, retry later");
+                    return;
+                }
+
+                // 3.4 Admitted: the latency of the request adjusts the operation's limit
+                admitted.incrementAndGet();
+                long started = startTiming();
+                try {
+                    handler.handle(exchange);
+                } finally {
+                    limiter.release(latencyMs(started));
+                }
+            } finally {
+                if (client != null) {
+                    releaseClient(client);
+                }
+            }
+        };
+    }
+
+    // 4. The same per-operation limits for the binary protocol (it has no client identity)
+    public RpcServer.Handler admit(RpcServer.Handler handler) {
+        return (op, path) -> {
+            String endpoint = RpcServer.endpointFor(op);
+            Limiter limiter = operations.computeIfAbsent(endpoint == null ? "rpc" : endpoint.substring(1),
+                    o -> new Limiter());
+            if (!limiter.tryAcquire()) {
+                rejectedOperation.incrementAndGet();
+                return new Reply(503, "Server overloaded, retry later");
+            }
+            admitted.incrementAndGet();
+            long started = startTiming();
+            try {
+                return handler.handle(op, path);
+            } finally {
+                limiter.release(latencyMs(started));
+            }
+        };
+    }
+
+    // 4.1 Endpoints without limits only get the overload check, so they do not run on the accepting thread
+    public HttpHandler shed(HttpHandler handler) {
+        return exchange -> {
+            if (shedding.get() != null) {
+                rejectedQueueFull.incrementAndGet();
+                reject(exchange, 503, "Server overloaded, retry later");
+                return;
+            }
+            waited.get()[0] = 0; // nothing left over from the worker's previous request
+            handler.handle(exchange);
+        };
+    }
+
+    // 4.2 Called by a request that waited for something other than its own work (read leases held by
+    // other clients), that time is taken out of the latency its operation's limit sees
+    public void waitedFor(long nanos) {
+        waited.get()[0] += nanos;
+    }
+
+    // 4.3 What the current request has waited for so far, a server tells the router so its limits
+    // leave that time out too
+    public long waitedMs() {
+        return waited.get()[0] / 1_000_000;
+    }
+
+    // 5. Current limits and rejection counters
+    public String stats() {
+        StringBuilder sb = new StringBuilder("=== Admission Control (" + name + ") ===\n\n");
+        sb.append(String.format("workers=%d, busy=%d, queued=%d/%d, clients-in-flight=%d%n",
+                WORKERS, workers.getActiveCount(), workers.getQueue().size(), QUEUE, clients.size()));
+        sb.append(String.format("admitted=%d, rejected: queue-full=%d, queue-expired=%d, client-limit=%d, op-limit=%d%n%n",
+                admitted.get(), rejectedQueueFull.get(), rejectedExpired.get(), rejectedClient.get(),
+                rejectedOperation.get()));
+        for (Map.Entry<String, Limiter> e : new java.util.TreeMap<>(operations).entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    // Helper method: smart clients identify themselves; without an id the client is its address,
+    // or nobody when byAddress is off (a metadata server sees all router traffic from one address)
+    private String clientOf(HttpExchange exchange) {
+        String id = exchange.getRequestHeaders().getFirst(MetadataServer.CLIENT_HEADER);
+        if (id != null && !id.isEmpty()) {
+            return id;
+        }
+        return byAddress ? exchange.getRemoteAddress().getAddress().getHostAddress() : null;
+    }
+
+    private boolean acquireClient(String client) {
+        boolean[] ok = new boolean[1];
+        clients.compute(client, (c, n) -> {
+            int current = n == null ? 0 : n;
+            ok[0] = current < CLIENT_LIMIT;
+            return ok[0] ? current + 1 : n;
+        });
+        return ok[0];
+    }
+
+    private void releaseClient(String client) {
+        clients.computeIfPresent(client, (c, n) -> n <= 1 ? null : n - 1);
+    }
+
+    // Helper method: a fast rejection, the body is not read
+    private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    // Helper method: latency of an admitted request, without the time it waited for others
+    private long startTiming() {
+        waited.get()[0] = 0;
+        return System.nanoTime();
+    }
+
+    private long latencyMs(long started) {
+        return Math.max(0, System.nanoTime() - started - waited.get()[0]) / 1_000_000;
+    }
+
+    private static int intEnv(String key, int defaultValue) {
+        return Integer.parseInt(System.getenv().getOrDefault(key, String.valueOf(defaultValue)));
+    }
+
+    // Inner class: AIMD concurrency limit of one operation
+    private static class Limiter {
+        private double limit = WORKERS; // start optimistic, the first slow requests bring it down
+        private int inFlight;
+        private long lastDecrease; // nanoTime, one decrease per target latency window
+        private long slow; // requests that took longer than the target
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void release(long latencyMs) {
+            boolean saturated = inFlight >= (int) limit; // the limit was what held requests back
+            inFlight--;
+            long now = System.nanoTime();
+            if (latencyMs > TARGET_LATENCY_MS) {
+                slow++;
+                // requests finishing together were slow for the same reason, so back off once for them
+                if ((now - lastDecrease) / 1_000_000 > TARGET_LATENCY_MS) {
+                    limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+                    lastDecrease = now;
+                }
+            } else if (saturated) {
+                limit = Math.min(WORKERS, limit + 1.0 / limit); // about +1 per round of requests
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("limit=%d, in-flight=%d, slow=%d", (int) limit, inFlight, slow);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Health of the router's backends: a prober calls every backend's /health in parallel, each backend
+// has a circuit breaker and a latency estimate that sets the timeouts of requests to it.
+// - breaker: after a few failed requests or probes in a row the backend counts as down and requests
+//   to it fail at once instead of waiting for a timeout; every BREAKER_RETRY_MS it is half-open and
+//   lets one request through, that request or a probe succeeding closes it again
+// - timeouts: smoothed latency + 4 * its deviation (the way TCP sets its retransmission timeout),
+//   but never below the time a server may keep a request queued, so a load spike on a live server
+//   shows up as its 503s and not as timeouts that open its circuit
+public class BackendHealth {
+    private static final long PROBE_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("HEALTH_INTERVAL_MS", "1000"));
+    private static final int FAILURES_TO_OPEN = Integer.parseInt(System.getenv().getOrDefault("BREAKER_FAILURES", "3"));
+    private static final long TRIAL_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("BREAKER_RETRY_MS", "500"));
+    private static final int PROBE_TIMEOUT_MS = 1000;
+    // never less: a GC pause should not count as a failure, and neither should a busy but healthy server
+    // that queued the request for as long as it may before answering 503 (see AdmissionController)
+    private static final int MIN_TIMEOUT_MS = (int) Math.max(250, AdmissionController.MAX_QUEUE_WAIT_MS + 250);
+    private static final int MAX_CONNECT_TIMEOUT_MS = 3000; // the old fixed timeouts are the upper bounds
+    private static final int MAX_READ_TIMEOUT_MS = 5000;
+    private static final int SLOW_OP_TIMEOUT_MS = 5000; // writes may wait for leases, bulk reads take time
+
+    private final List<String> backends;
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService prober;
+    private final ExecutorService probes = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "health-probe");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 1. Constructor
+    public BackendHealth(List<String> backends) {
+        this.backends = backends;
+        for (String backend : backends) {
+            states.put(backend, new State());
+        }
+        this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "health-prober");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // 2. Probing all backends at the same time, a dead one does not delay the others
+    public void start() {
+        prober.scheduleWithFixedDelay(() -> {
+            for (String backend : backends) {
+                probes.execute(() -> probe(backend));
+            }
+        }, 0, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(String backend) {
+        State state = states.get(backend);
+        long started = System.nanoTime();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(backend + "/health").openConnection();
+            conn.setConnectTimeout(PROBE_TIMEOUT_MS);
+            conn.setReadTimeout(PROBE_TIMEOUT_MS);
+            try {
+                int status = conn.getResponseCode();
+                if (status != 200) {
+                    throw new IOException("status " + status);
+                }
+                conn.getInputStream().readAllBytes();
+            } finally {
+                conn.disconnect();
+            }
+            state.lastProbe = "ok";
+            success(backend, (System.nanoTime() - started) / 1_000_000, true);
+        } catch (IOException e) {
+            state.lastProbe = e.getMessage();
+            failure(backend);
+        }
+    }
+
+    // 3. Breaker: false means the backend is down, fail without trying; an open breaker lets one
+    // request per TRIAL_INTERVAL_MS through as a trial (half-open)
+    public boolean allow(String backend) {
+        State state = states.get(backend);
+        if (state == null || !state.open) {
+            return true;
+        }
+        synchronized (state) {
+            long now = System.currentTimeMillis();
+            if (!state.open || now >= state.trialAt) {
+                state.trialAt = now + TRIAL_INTERVAL_MS;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // 3.1 Outcome of a request; latency is only learned from quick requests, not from lease waits or bulk reads
+    public void success(String backend, long latencyMs, boolean quick) {
+        State state = states.get(backend);
+        if (state == null) return;
+        synchronized (state) {
+            if (state.open) {
+                System.out.println("[Router] " + backend + " answered, closing its circuit");
+            }
+            state.failures = 0;
+            state.open = false;
+            if (quick) {
+                state.observe(latencyMs);
+            }
+        }
+    }
+
+    public void failure(String backend) {
+        State state = states.get(backend);
+        if (state == null) return;
+        synchronized (state) {
+            state.failures++;
+            if (!state.open && state.failures >= FAILURES_TO_OPEN) {
+                state.open = true;
+                state.trialAt = System.currentTimeMillis() + TRIAL_INTERVAL_MS;
+                System.err.println("[Router] " + backend + " failed " + state.failures + " times in a row, opening its circuit");
+            }
+        }
+    }
+
+    // 4. Timeouts for the next request to a backend
+    public int connectTimeout(String backend) {
+        State state = states.get(backend);
+        return state == null ? MAX_CONNECT_TIMEOUT_MS : Math.min(state.timeout(), MAX_CONNECT_TIMEOUT_MS);
+    }
+
+    public int readTimeout(String backend, boolean quick) {
+        State state = states.get(backend);
+        int adaptive = state == null ? MAX_READ_TIMEOUT_MS : Math.min(state.timeout(), MAX_READ_TIMEOUT_MS);
+        return quick ? adaptive : Math.max(adaptive, SLOW_OP_TIMEOUT_MS);
+    }
+
+    // 5. Status of every backend, for the router's /cluster endpoint
+    public String status() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < backends.size(); i++) {
+            String backend = backends.get(i);
+            State state = states.get(backend);
+            synchronized (state) {
+                sb.append("  Server ").append(i + 1).append(": ").append(backend)
+                        .append(state.open ? " DOWN (circuit open)" : " Alive")
+                        .append(String.format(", latency=%.1f ms (+/- %.1f), timeout=%d ms, last probe: %s%n",
+                                state.latency, state.deviation, state.timeout(), state.lastProbe));
+            }
+        }
+        return sb.toString();
+    }
+
+    public void stop() {
+        prober.shutdownNow();
+        probes.shutdownNow();
+    }
+
+    // Inner class: breaker and latency estimate of one backend
+    private static class State {
+        private int failures; // in a row
+        private volatile boolean open; // true = backend counts as down
+        private long trialAt; // while open: when the next request may go through as a trial
+        private volatile String lastProbe = "pending";
+        private double latency = -1; // smoothed latency in ms, -1 until the first sample
+        private double deviation;
+
+        // smoothing as in TCP: 1/8 of each new sample for the latency, 1/4 for its deviation
+        private void observe(long sampleMs) {
+            if (latency < 0) {
+                latency = sampleMs;
+                deviation = sampleMs / 2.0;
+            } else {
+                deviation = 0.75 * deviation + 0.25 * Math.abs(latency - sampleMs);
+                latency = 0.875 * latency + 0.125 * sampleMs;
+            }
+        }
+
+        private synchronized int timeout() {
+            if (latency < 0) {
+                return MAX_READ_TIMEOUT_MS; // nothing learned yet
+            }
+            return (int) Math.max(MIN_TIMEOUT_MS, latency + 4 * deviation);
+        }
+    }
+}
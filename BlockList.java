@@ -0,0 +1,76 @@
+// Block list of a file, packed into one long[] instead of an object per block: two longs per block,
+// the block id and its locations (up to four datanode ids of 16 bits each, 0 = unused slot).
+// Files without blocks share EMPTY, so they cost nothing but the reference.
+// Text form, used by /setattr, stat and the checkpoint: "<id>@<dn>.<dn>.<dn>" per block, comma separated,
+// e.g. "1001@1.2.3,1002@2.3.4"; a block without locations yet is just "<id>".
+public final class BlockList {
+    static final long[] EMPTY = new long[0];
+    static final int MAX_LOCATIONS = 4; // slots in one long, so also the highest replication factor
+    static final int MAX_DATANODE = 0xFFFF;
+
+    private BlockList() {
+    }
+
+    // 1. Parsing the text form; IllegalArgumentException tells the caller what is wrong with it
+    static long[] parse(String text, int maxBlocks) {
+        if (text == null || text.isEmpty() || text.equals("-")) {
+            return EMPTY;
+        }
+        String[] parts = text.split(",");
+        if (parts.length > maxBlocks) {
+            throw new IllegalArgumentException("More than " + maxBlocks + " blocks");
+        }
+        long[] blocks = new long[parts.length * 2];
+        for (int i = 0; i < parts.length; i++) {
+            String[] block = parts[i].split("@", 2);
+            try {
+                blocks[2 * i] = Long.parseLong(block[0]);
+                blocks[2 * i + 1] = block.length == 2 ? packLocations(block[1]) : 0;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid block: " + parts[i]);
+            }
+        }
+        return blocks;
+    }
+
+    // 2. Text form again, "-" when there are no blocks so a checkpoint field is never empty
+    static String format(long[] blocks) {
+        if (blocks.length == 0) {
+            return "-";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < blocks.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(blocks[i]);
+            long locations = blocks[i + 1];
+            for (int slot = 0; slot < MAX_LOCATIONS; slot++) {
+                long datanode = (locations >>> (16 * slot)) & MAX_DATANODE;
+                if (datanode != 0) {
+                    sb.append(slot == 0 ? '@' : '.').append(datanode);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    static int count(long[] blocks) {
+        return blocks.length / 2;
+    }
+
+    // Helper method: "1.2.3" -> datanodes 1, 2 and 3 in the low, second and third 16 bits
+    private static long packLocations(String text) {
+        String[] datanodes = text.split("\\.");
+        if (datanodes.length > MAX_LOCATIONS) {
+            throw new IllegalArgumentException("More than " + MAX_LOCATIONS + " locations in block: " + text);
+        }
+        long packed = 0;
+        for (int slot = 0; slot < datanodes.length; slot++) {
+            int datanode = Integer.parseInt(datanodes[slot]);
+            if (datanode < 1 || datanode > MAX_DATANODE) {
+                throw new IllegalArgumentException("Datanode id out of range (1-" + MAX_DATANODE + "): " + datanode);
+            }
+            packed |= (long) datanode << (16 * slot);
+        }
+        return packed;
+    }
+}
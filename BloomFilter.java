@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Bloom filter over the inode keys of one shard. The router keeps one per backend and answers
+// "definitely not there" itself, without a network round trip; "maybe there" goes to the backend.
+// The server keeps the counting variant below, because entries get removed, and sends the router
+// only the bits that flipped.
+public class BloomFilter {
+    public static final int DEFAULT_BITS = 1 << 20; // 128 KB of bits, ~1% false positives at ~100k keys
+    public static final int DEFAULT_HASHES = 7;
+
+    private final int bits; // number of bits (m)
+    private final int hashes; // number of hash functions (k)
+    private final long[] words;
+
+    // 1. Constructor
+    public BloomFilter(int bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.words = new long[(bits + 63) / 64];
+    }
+
+    // 2. Lookup: false means the key is definitely not in the set
+    public synchronized boolean mightContain(String key) {
+        for (int index : indexes(key, bits, hashes)) {
+            if ((words[index >>> 6] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 3. Updates: setting bits for a key, or applying flipped bits sent by the server (+index / -index)
+    public synchronized void add(String key) {
+        for (int index : indexes(key, bits, hashes)) {
+            words[index >>> 6] |= 1L << index;
+        }
+    }
+
+    public synchronized void apply(int index, boolean set) {
+        if (set) {
+            words[index >>> 6] |= 1L << index;
+        } else {
+            words[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    // 4. Size and accuracy
+    public synchronized long bitsSet() {
+        long count = 0;
+        for (long word : words) count += Long.bitCount(word);
+        return count;
+    }
+
+    // chance that a key which is not in the set still passes mightContain: (fraction of bits set)^k
+    public double falsePositiveRate() {
+        return Math.pow((double) bitsSet() / bits, hashes);
+    }
+
+    public long memoryBytes() {
+        return words.length * 8L;
+    }
+
+    public int getBits() { return bits; }
+    public int getHashes() { return hashes; }
+
+    // 5. Whole filter as text, for the initial sync: "bits <m>", "hashes <k>", then the words in base64
+    public synchronized String encode() {
+        ByteBuffer buf = ByteBuffer.allocate(words.length * 8);
+        for (long word : words) buf.putLong(word);
+        return "bits " + bits + "\nhashes " + hashes + "\n" + Base64.getEncoder().encodeToString(buf.array()) + "\n";
+    }
+
+    // parses the lines following the ones the caller already consumed (e.g. "seq <n>")
+    public static BloomFilter decode(List<String> lines) {
+        int bits = 0, hashes = 0;
+        String data = null;
+        for (String line : lines) {
+            if (line.startsWith("bits ")) bits = Integer.parseInt(line.substring(5).trim());
+            else if (line.startsWith("hashes ")) hashes = Integer.parseInt(line.substring(7).trim());
+            else if (!line.isEmpty() && !line.contains(" ")) data = line.trim();
+        }
+        if (bits <= 0 || hashes <= 0 || data == null) {
+            throw new IllegalArgumentException("Malformed bloom filter");
+        }
+        BloomFilter filter = new BloomFilter(bits, hashes);
+        ByteBuffer buf = ByteBuffer.wrap(Base64.getDecoder().decode(data));
+        for (int i = 0; i < filter.words.length && buf.remaining() >= 8; i++) {
+            filter.words[i] = buf.getLong();
+        }
+        return filter;
+    }
+
+    // Helper method: k bit positions by double hashing (h1 + i * h2) of two independent 32 bit hashes
+    static int[] indexes(String key, int bits, int hashes) {
+        int h1 = key.hashCode();
+        int h2 = fnv1a(key) | 1; // odd, so the positions do not repeat early
+        int[] result = new int[hashes];
+        for (int i = 0; i < hashes; i++) {
+            result[i] = Math.floorMod(h1 + i * h2, bits);
+        }
+        return result;
+    }
+
+    private static int fnv1a(String key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    // Inner class: the server side, one small counter per bit so keys can be removed again.
+    // Only 0 <-> 1 transitions change the plain filter; those are numbered and kept in a log,
+    // so the router can catch up from any recent sequence number.
+    public static class Counting {
+        private static final int STUCK = 255; // a counter that overflowed stays set forever
+        private static final int LOG_SIZE = 100_000; // flipped bits kept for catching up
+
+        private final BloomFilter filter; // the plain filter the router mirrors
+        private final byte[] counters;
+        private long seq; // number of bit flips so far
+        private final ArrayDeque<Integer> log = new ArrayDeque<>(); // last flips: index+1, negative = cleared
+
+        public Counting(int bits, int hashes) {
+            this.filter = new BloomFilter(bits, hashes);
+            this.counters = new byte[bits];
+        }
+
+        public synchronized void add(String key) {
+            for (int index : indexes(key, filter.bits, filter.hashes)) {
+                int count = counters[index] & 0xff;
+                if (count == STUCK) continue;
+                counters[index] = (byte) (count + 1);
+                if (count == 0) flip(index, true);
+            }
+        }
+
+        public synchronized void remove(String key) {
+            for (int index : indexes(key, filter.bits, filter.hashes)) {
+                int count = counters[index] & 0xff;
+                if (count == STUCK || count == 0) continue;
+                counters[index] = (byte) (count - 1);
+                if (count == 1) flip(index, false);
+            }
+        }
+
+        private void flip(int index, boolean set) {
+            filter.apply(index, set);
+            seq++;
+            log.addLast(set ? index + 1 : -(index + 1));
+            if (log.size() > LOG_SIZE) log.removeFirst();
+        }
+
+        public synchronized long getSeq() {
+            return seq;
+        }
+
+        // full filter, prefixed with the sequence number it corresponds to
+        public synchronized String encode() {
+            return "seq " + seq + "\n" + filter.encode();
+        }
+
+        // flips after sequence number since as "+index"/"-index" lines, null if the log no longer reaches back
+        public synchronized String changesSince(long since) {
+            if (since > seq || seq - since > log.size()) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("from ").append(since).append("\nto ").append(seq).append("\n");
+            Iterator<Integer> it = log.descendingIterator();
+            Deque<Integer> recent = new ArrayDeque<>();
+            for (long n = seq; n > since; n--) {
+                recent.addFirst(it.next());
+            }
+            for (int change : recent) {
+                sb.append(change > 0 ? "+" : "-").append(Math.abs(change) - 1).append("\n");
+            }
+            return sb.toString();
+        }
+
+        public long memoryBytes() {
+            return counters.length + filter.memoryBytes();
+        }
+    }
+}
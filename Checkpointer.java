@@ -0,0 +1,286 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Background checkpointing of the metadata map.
+// A checkpoint writes the map as it was at one point in time, while requests keep changing it:
+// starting a checkpoint only flips a flag under a short write lock, after that every mutation first
+// saves the old value of its key (copy-on-write), and the background thread writes the old value
+// wherever one was saved. The file is written next to the real one and then renamed over it, so a
+// crash in the middle leaves the previous checkpoint intact.
+// Between checkpoints every mutation is appended to a log, which is forced to disk before the request
+// is answered (one force covers every record appended until then, so concurrent writers share it).
+// A checkpoint starts a new log; the previous one is deleted once the checkpoint is on disk, so the
+// checkpoint plus the logs left over always hold every acknowledged change.
+public class Checkpointer<V> {
+    private static final Object ABSENT = new Object(); // "key did not exist when the checkpoint started"
+
+    private final Map<String, V> map; // the live map, a ConcurrentHashMap
+    private final Path file; // checkpoint file
+    private final Path logFile; // changes since the last checkpoint started
+    private final Path oldLogFile; // changes before that, until the checkpoint is on disk
+    private final Function<V, String> format; // one line per entry
+    private final long intervalMs; // checkpoint at least this often when something changed
+    private final long maxMutations; // ... or as soon as this many mutations piled up
+    private final String name; // for log lines
+
+    // Mutations hold the read lock (many at once), starting/ending a checkpoint takes the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Object> preImages = new ConcurrentHashMap<>(); // key -> value at checkpoint start
+    private volatile boolean snapshotting;
+    private final AtomicLong mutations = new AtomicLong(); // since the last checkpoint
+    private final Semaphore wakeUp = new Semaphore(0);
+    private volatile boolean running;
+    private Thread thread;
+
+    // The log: records are appended under logLock, forces happen under syncLock (taken first) so
+    // appending goes on while the disk catches up
+    private final Object logLock = new Object();
+    private final Object syncLock = new Object();
+    private FileChannel log;
+    private Writer logWriter;
+    private long appended; // records appended, guarded by logLock
+    private volatile long durable; // records known to be on disk
+
+    // 1. Constructor, opens the log for appending; a server that cannot log must not take writes
+    public Checkpointer(Map<String, V> map, Path file, Path logFile, Function<V, String> format,
+                        long intervalMs, long maxMutations, String name) {
+        this.map = map;
+        this.file = file;
+        this.logFile = logFile;
+        this.oldLogFile = logFile.resolveSibling(logFile.getFileName() + ".old");
+        this.format = format;
+        this.intervalMs = intervalMs;
+        this.maxMutations = maxMutations;
+        this.name = name;
+        try {
+            Files.createDirectories(logFile.getParent());
+            openLog();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open log " + logFile, e);
+        }
+    }
+
+    // 2. Starting the background thread
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 3. Mutation side: callers hold mutationLock() around beforeMutation + the change itself.
+    // A batch can hold the lock across all its changes, so a checkpoint never sees half of it.
+    public Lock mutationLock() {
+        return lock.readLock();
+    }
+
+    public void beforeMutation(String key) {
+        if (snapshotting) {
+            V current = map.get(key);
+            preImages.putIfAbsent(key, current == null ? ABSENT : current);
+        }
+    }
+
+    // 3.1 Called with the mutation lock still held, once the change is made: value is the new value of
+    // the key, null when it was removed. The record goes to the log (not yet to disk, see sync)
+    public void mutated(String key, V value) {
+        synchronized (logLock) {
+            try {
+                logWriter.write(value == null ? "-" + key + "\n" : format.apply(value));
+                appended++;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot append to log " + logFile, e);
+            }
+        }
+        if (mutations.incrementAndGet() == maxMutations) {
+            wakeUp.release(); // enough changes piled up, do not wait for the timer
+        }
+    }
+
+    // 3.2 Forcing the log to disk, called after the mutation lock is released and before the change
+    // is acknowledged. Inside a batch (the caller still holds the lock) it waits for the batch's own call
+    public void sync() {
+        if (lock.getReadHoldCount() > 0) {
+            return;
+        }
+        long target;
+        synchronized (logLock) {
+            target = appended;
+        }
+        synchronized (syncLock) {
+            if (durable >= target) {
+                return; // a force that started after our records were appended covered them
+            }
+            long upTo;
+            try {
+                synchronized (logLock) {
+                    logWriter.flush();
+                    upTo = appended;
+                }
+                log.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot force log " + logFile, e);
+            }
+            durable = upTo;
+        }
+    }
+
+    // 3.3 Recovery, before the first mutation: the records of the logs, oldest first, on top of the
+    // loaded checkpoint. Records older than the checkpoint only repeat values it already has, so the
+    // last record of each key always wins. A torn last line (crash while appending) is skipped
+    public void replay(Consumer<String> put, Consumer<String> remove) throws IOException {
+        int records = 0;
+        for (Path path : List.of(oldLogFile, logFile)) {
+            if (!Files.exists(path)) continue;
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                if (line.isEmpty()) continue;
+                try {
+                    if (line.startsWith("-")) {
+                        remove.accept(line.substring(1));
+                    } else {
+                        put.accept(line);
+                    }
+                    records++;
+                } catch (RuntimeException e) {
+                    System.err.println("[" + name + "] Skipping unreadable log record: " + line);
+                }
+            }
+        }
+        System.out.println("[" + name + "] Replayed " + records + " log records");
+    }
+
+    // 4. Background loop: a checkpoint per interval or per maxMutations changes, whichever comes first
+    private void run() {
+        while (running) {
+            try {
+                wakeUp.tryAcquire(intervalMs, TimeUnit.MILLISECONDS);
+                wakeUp.drainPermits();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (mutations.get() > 0) {
+                checkpoint();
+            }
+        }
+    }
+
+    // 5. Writing one consistent checkpoint
+    public synchronized void checkpoint() {
+        long started = System.nanoTime();
+
+        // 5.1 Point in time of the checkpoint: no mutation is half done while the flag flips, and
+        // the log starts over, everything from here on is in the new one
+        lock.writeLock().lock();
+        try {
+            snapshotting = true;
+            mutations.set(0);
+            rotateLog();
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Error starting a new log: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        int written = 0;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(
+                         java.nio.channels.Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+
+                // 5.2 Live entries, unless they changed since the start; the value is read before the
+                // pre-image check, because a mutation always saves the pre-image before changing the key
+                for (Map.Entry<String, V> e : map.entrySet()) {
+                    V value = e.getValue();
+                    if (preImages.containsKey(e.getKey())) continue;
+                    writer.write(format.apply(value));
+                    written++;
+                }
+
+                // 5.3 Old values of everything that changed (or was removed) since the start; a key the
+                // loop above already wrote can show up again here with the same value, load keeps one
+                for (Object old : preImages.values()) {
+                    if (old == ABSENT) continue;
+                    @SuppressWarnings("unchecked") V value = (V) old;
+                    writer.write(format.apply(value));
+                    written++;
+                }
+                writer.flush();
+                channel.force(true); // on disk before it replaces the previous checkpoint
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(oldLogFile); // the checkpoint holds all of it now
+        } catch (Exception e) {
+            System.err.println("[" + name + "] Error saving checkpoint: " + e.getMessage());
+            mutations.incrementAndGet(); // try again on the next round
+        } finally {
+            // 5.4 Checkpoint done, mutations stop saving pre-images
+            lock.writeLock().lock();
+            try {
+                snapshotting = false;
+                preImages.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        System.out.println("[" + name + "] Checkpoint of " + written + " entries in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    // 6. Stopping: one last checkpoint, so a restart does not have to replay the log
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (mutations.get() > 0) {
+            checkpoint();
+        }
+        synchronized (syncLock) {
+            synchronized (logLock) {
+                try {
+                    logWriter.close();
+                } catch (IOException e) {
+                    System.err.println("[" + name + "] Error closing log: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Helper method: the current log becomes the old one (its records are forced first, they were
+    // acknowledged or are about to be) and a new log is opened. If the old one is still there, the last
+    // checkpoint failed and its records are in no checkpoint yet, so the current log is kept going instead
+    private void rotateLog() throws IOException {
+        synchronized (syncLock) {
+            synchronized (logLock) {
+                if (Files.exists(oldLogFile)) {
+                    return;
+                }
+                logWriter.flush();
+                log.force(false);
+                durable = appended;
+                logWriter.close();
+                Files.move(logFile, oldLogFile, StandardCopyOption.ATOMIC_MOVE);
+                openLog();
+            }
+        }
+    }
+
+    private void openLog() throws IOException {
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logWriter = new BufferedWriter(new OutputStreamWriter(
+                java.nio.channels.Channels.newOutputStream(log), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+// Predicates of a /find, parsed from the query string by the router and again by every server, which
+// evaluates them while scanning its entries so only matches cross the network:
+//   name=<glob>   last path component: * and ? within a name, [abc] / [!abc] character classes
+//   type=file|dir
+//   size=, ctime=, mtime=, atime=<from>..<to>   ranges, from inclusive, to exclusive, either end optional
+//   limit=<n>     stop after n matches
+// The name a server sees is the one an entry was created under; for renamed entries it may be
+// different, so servers send those whatever their name and the router checks the logical one.
+public class FindQuery {
+    private static final List<String> RANGES = List.of("size", "ctime", "mtime", "atime");
+
+    private final Map<String, String> params; // as given, passed on to the servers
+    private final Pattern name; // null: any name
+    private final String type; // null: both
+    private final long[][] ranges = new long[RANGES.size()][]; // {from, to} per entry of RANGES, null: any
+    private final int limit;
+
+    // 1. Parsing, IllegalArgumentException says which parameter is wrong
+    public static FindQuery parse(Function<String, String> param) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (String key : List.of("name", "type", "size", "ctime", "mtime", "atime", "limit")) {
+            String value = param.apply(key);
+            if (value != null && !value.isEmpty()) {
+                params.put(key, value);
+            }
+        }
+        return new FindQuery(params);
+    }
+
+    private FindQuery(Map<String, String> params) {
+        this.params = params;
+        this.name = params.containsKey("name") ? globToPattern(params.get("name")) : null;
+        this.type = params.get("type");
+        if (type != null && !type.equals("file") && !type.equals("dir")) {
+            throw new IllegalArgumentException("Invalid 'type' parameter, file or dir");
+        }
+        for (int i = 0; i < RANGES.size(); i++) {
+            String range = params.get(RANGES.get(i));
+            if (range != null) {
+                ranges[i] = parseRange(RANGES.get(i), range);
+            }
+        }
+        try {
+            this.limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid 'limit' parameter");
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Invalid 'limit' parameter");
+        }
+    }
+
+    // 2. Evaluating on a server; checkName is false for entries whose name the router decides
+    public boolean matches(MetadataServer.MetadataEntry entry, boolean checkName) {
+        if (type != null && !type.equals(entry.getType())) return false;
+        if (!inRange(0, entry.getSize()) || !inRange(1, entry.getTimestamp())
+                || !inRange(2, entry.getMtime()) || !inRange(3, entry.getAtime())) {
+            return false;
+        }
+        return !checkName || nameMatches(nameOf(entry.getPath()));
+    }
+
+    public boolean nameMatches(String entryName) {
+        return name == null || name.matcher(entryName).matches();
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    // 3. The predicates as query parameters again, "name=...&type=..."
+    public String toParams() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                if (sb.length() > 0) sb.append('&');
+                sb.append(e.getKey()).append('=').append(URLEncoder.encode(e.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always there
+        }
+        return sb.toString();
+    }
+
+    // Helper method: "/home/maria" -> "maria", "/" -> ""
+    public static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private boolean inRange(int index, long value) {
+        long[] range = ranges[index];
+        return range == null || (value >= range[0] && value < range[1]);
+    }
+
+    // Helper method: "100..200", "100.." or "..200"
+    private static long[] parseRange(String key, String text) {
+        int dots = text.indexOf("..");
+        try {
+            if (dots < 0) throw new NumberFormatException();
+            String from = text.substring(0, dots), to = text.substring(dots + 2);
+            return new long[] {
+                    from.isEmpty() ? Long.MIN_VALUE : Long.parseLong(from),
+                    to.isEmpty() ? Long.MAX_VALUE : Long.parseLong(to) };
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid '" + key + "' parameter, expected <from>..<to>");
+        }
+    }
+
+    // Helper method: shell glob to a regular expression, everything but * ? [ ] matches itself
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') inClass = false;
+                if (c == '\\' || c == '[' || c == '&') regex.append('\\');
+                regex.append(c);
+            } else if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[') {
+                inClass = true;
+                regex.append('[');
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                    regex.append('^');
+                    i++;
+                }
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (inClass) {
+            throw new IllegalArgumentException("Invalid 'name' parameter, unclosed [");
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
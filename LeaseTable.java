@@ -0,0 +1,122 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Read leases handed out by a metadata server. While a client holds a lease on a path it may answer
+// /stat and /readdir for that path from its own cache; a conflicting write has to wait until every
+// other client's lease on the path has expired. Leases are short, so waiting for expiry is the revocation.
+public class LeaseTable {
+    private final long leaseMs; // how long a granted lease stays valid
+    private final Map<String, Map<String, Long>> leases = new HashMap<>(); // path -> client id -> expiry (ms)
+    private final Map<String, Integer> pendingWrites = new HashMap<>(); // paths with a write waiting, no new leases
+    private final ScheduledExecutorService sweeper;
+
+    // 1. Constructor
+    public LeaseTable(long leaseMs) {
+        this.leaseMs = leaseMs;
+
+        // 1.1 Dropping expired leases in the background so paths that are never written do not pile up
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleAtFixedRate(this::sweep, leaseMs, leaseMs, TimeUnit.MILLISECONDS);
+    }
+
+    // 2. Granting a lease, this has to happen BEFORE the server reads the value it returns
+    // returns the lease duration in ms, or -1 when no lease is granted (a write on the path is pending)
+    public synchronized long grant(String path, String clientId) {
+        if (clientId == null || pendingWrites.containsKey(path)) {
+            return -1;
+        }
+        long expiry = System.currentTimeMillis() + leaseMs;
+        leases.computeIfAbsent(path, p -> new HashMap<>()).put(clientId, expiry);
+        return leaseMs;
+    }
+
+    // 3. Blocking a write until no other client holds a lease on any of the given paths
+    // the writer's own leases are dropped, the client invalidates its own cache when it writes
+    public void await(String clientId, Collection<String> paths) throws InterruptedException {
+        synchronized (this) {
+            for (String path : paths) {
+                pendingWrites.merge(path, 1, Integer::sum); // stop handing out new leases on these paths
+            }
+        }
+
+        while (true) {
+            long waitMs;
+            synchronized (this) {
+                waitMs = 0;
+                long now = System.currentTimeMillis();
+                for (String path : paths) {
+                    Map<String, Long> holders = leases.get(path);
+                    if (holders == null) continue;
+                    if (clientId != null) holders.remove(clientId);
+                    holders.values().removeIf(expiry -> expiry <= now);
+                    if (holders.isEmpty()) {
+                        leases.remove(path);
+                        continue;
+                    }
+                    for (long expiry : holders.values()) {
+                        waitMs = Math.max(waitMs, expiry - now);
+                    }
+                }
+            }
+            if (waitMs <= 0) {
+                return;
+            }
+            Thread.sleep(waitMs);
+        }
+    }
+
+    // 4. Called after the write has been applied (or failed), leases can be granted again
+    public synchronized void release(Collection<String> paths) {
+        for (String path : paths) {
+            pendingWrites.computeIfPresent(path, (p, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    // 4.1 Waiting out every lease on a path at or below the given prefixes, for changes that give the
+    // keys there a new meaning (renames): no client keeps serving what it cached under the old one
+    public void revoke(Collection<String> prefixes) throws InterruptedException {
+        if (prefixes.isEmpty()) {
+            return;
+        }
+        List<String> paths = new ArrayList<>();
+        synchronized (this) {
+            for (String path : leases.keySet()) {
+                for (String prefix : prefixes) {
+                    if (PathResolver.isUnder(path, prefix)) {
+                        paths.add(path);
+                        break;
+                    }
+                }
+            }
+        }
+        try {
+            await(null, paths);
+        } finally {
+            release(paths);
+        }
+    }
+
+    // 5. Number of paths with at least one outstanding lease
+    public synchronized int size() {
+        return leases.size();
+    }
+
+    // Helper method: removing expired leases of all paths
+    private synchronized void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Map<String, Long>> it = leases.values().iterator();
+        while (it.hasNext()) {
+            Map<String, Long> holders = it.next();
+            holders.values().removeIf(expiry -> expiry <= now);
+            if (holders.isEmpty()) it.remove();
+        }
+    }
+
+    public void stop() {
+        sweeper.shutdownNow();
+    }
+}
@@ -8,6 +8,9 @@ public class Main {
         String serverId = System.getenv("SERVER_ID");
         String portStr = System.getenv("PORT");
         String serversEnv = System.getenv("SERVERS");
+        String numServersEnv = System.getenv("NUM_SERVERS");
+        String rpcPortStr = System.getenv("RPC_PORT");
+        String routerUrl = System.getenv("ROUTER_URL");
 
         // 2. Validating that environment variables have been set
         if (mode == null || mode.isEmpty()) {
@@ -34,6 +37,17 @@ public class Main {
             System.exit(1);
         }
 
+        // 2.1 The binary protocol is optional, it is only started when RPC_PORT is set
+        int rpcPort = 0;
+        if (rpcPortStr != null && !rpcPortStr.isEmpty()) {
+            try {
+                rpcPort = Integer.parseInt(rpcPortStr);
+            } catch (NumberFormatException e) {
+                System.err.println("Error: Invalid RPC_PORT value: " + rpcPortStr);
+                System.exit(1);
+            }
+        }
+
         try {
             // 3. Start the router which distributes requests to servers
             if ("router".equals(mode)) {
@@ -52,6 +66,9 @@ public class Main {
                 System.out.println("Starting Router on port " + port + " with backends: " + backends);
                 RouterGateway router = new RouterGateway(backends, port); // create + start the router
                 router.start();
+                if (rpcPort > 0) {
+                    router.startRpc(rpcPort);
+                }
                 System.out.println("Router is running. Press Ctrl+C to stop.");
                 Thread.currentThread().join(); // keep the main thread alive so that the router runs in the background threads
 
@@ -63,15 +80,35 @@ public class Main {
                     System.exit(1);
                 }
 
+                // 4.2 Number of shards, has to match the number of backends the router is given
+                int numServers = 3;
+                if (numServersEnv != null && !numServersEnv.isEmpty()) {
+                    try {
+                        numServers = Integer.parseInt(numServersEnv);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Error: Invalid NUM_SERVERS value: " + numServersEnv);
+                        System.exit(1);
+                    }
+                }
+
                 System.out.println("Starting Metadata Server " + serverId + " on port " + port);
 
-                // 4.2 Create + start metadata server
-                MetadataServer metadataServer = new MetadataServer(port, serverId);
+                // 4.3 Create + start metadata server
+                MetadataServer metadataServer = new MetadataServer(port, serverId, numServers);
                 metadataServer.start();
+                if (rpcPort > 0) {
+                    metadataServer.startRpc(rpcPort);
+                }
+                if (routerUrl != null && !routerUrl.isEmpty()) {
+                    metadataServer.startBloomPush(routerUrl); // keeps the router's negative lookup filter fresh
+                }
+
+                // 4.4 Ctrl+C / docker stop: write a last checkpoint before the JVM exits
+                Runtime.getRuntime().addShutdownHook(new Thread(metadataServer::stop));
 
                 System.out.println("Metadata Server " + serverId + " is running. Press Ctrl+C to stop.");
 
-                Thread.currentThread().join(); // 4.3 Keeping the main thread alive
+                Thread.currentThread().join(); // 4.5 Keeping the main thread alive
             }
             else {
                 System.err.println("Error: Unknown MODE: " + mode);
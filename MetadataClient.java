@@ -0,0 +1,366 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Smart client: fetches the placement map from the router once, then talks to the owning
+// metadata server directly, so every operation costs one network hop instead of two.
+// The router is only contacted again when the map turns out to be stale or older than PLACEMENT_TTL_MS;
+// the map also carries the rename table, so renames done by others show up within that time.
+// /stat and /readdir answers are cached for as long as the server's read lease allows.
+public class MetadataClient {
+    private static final int MAX_ATTEMPTS = 2; // first try + one retry after refreshing the map
+    private static final int MAX_CACHED = 10000; // cached read answers, least recently used are dropped
+    private static final long PLACEMENT_TTL_MS = 5000; // placement map is re-fetched after this long
+
+    private final String routerUrl; // router used to fetch the placement map
+    private final String clientId = UUID.randomUUID().toString(); // identifies our leases on the servers
+    private volatile Placement placement; // cached placement map
+
+    // op + path -> leased answer, access ordered so the eldest entry is the least recently used
+    private final Map<String, CachedRead> cache = new LinkedHashMap<String, CachedRead>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedRead> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    // 1. Constructor
+    public MetadataClient(String routerUrl) {
+        this.routerUrl = routerUrl;
+    }
+
+    // 2. Main function: small command line front-end, e.g. "java MetadataClient http://localhost:8000 stat /home"
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: java MetadataClient <routerUrl> <mkdir|mkdir-p|touch|readdir|stat|rm|rm-r> <path>");
+            System.err.println("       java MetadataClient <routerUrl> rename <path> <newPath>");
+            System.exit(1);
+        }
+
+        MetadataClient client = new MetadataClient(args[0]);
+        Response response;
+        switch (args[1]) {
+            case "mkdir":   response = client.mkdir(args[2]); break;
+            case "touch":   response = client.touch(args[2]); break;
+            case "readdir": response = client.readdir(args[2]); break;
+            case "stat":    response = client.stat(args[2]); break;
+            case "rm":      response = client.rm(args[2]); break;
+            case "mkdir-p": response = client.mkdirs(args[2]); break;
+            case "rm-r":    response = client.rmRecursive(args[2]); break;
+            case "rename":
+                if (args.length < 4) {
+                    System.err.println("Usage: java MetadataClient <routerUrl> rename <path> <newPath>");
+                    System.exit(1);
+                }
+                response = client.rename(args[2], args[3]);
+                break;
+            default:
+                System.err.println("Unknown command: " + args[1]);
+                System.exit(1);
+                return;
+        }
+        System.out.println(response.getStatus() + " " + response.getBody());
+    }
+
+    // 3. Public API, same operations as the router exposes
+    public Response mkdir(String path) throws IOException {
+        return create("/mkdir", path);
+    }
+
+    public Response touch(String path) throws IOException {
+        return create("/touch", path);
+    }
+
+    public Response readdir(String path) throws IOException {
+        return cachedRead("/readdir", path);
+    }
+
+    public Response stat(String path) throws IOException {
+        return cachedRead("/stat", path);
+    }
+
+    public Response rm(String path) throws IOException {
+        // no parent check here: if the path exists its parent existed when it was created
+        String normalizedPath = normalize(path);
+        invalidate(normalizedPath);
+        try {
+            return call("/rm", "POST", normalizedPath, false);
+        } finally {
+            invalidate(normalizedPath);
+        }
+    }
+
+    // 3.1 Renames change the namespace for everyone, so they go through the router
+    public Response rename(String path, String newPath) throws IOException {
+        String src = normalize(path);
+        String dst = normalize(newPath);
+        Response response = httpCall(routerUrl + "/rename?path=" + URLEncoder.encode(src, "UTF-8")
+                + "&to=" + URLEncoder.encode(dst, "UTF-8"), "POST", -1, null);
+        synchronized (cache) {
+            cache.clear(); // everything below src has moved
+        }
+        refreshPlacement();
+        return response;
+    }
+
+    // 3.2 "mkdir -p" and "rm -r" span several shards, the router coordinates them
+    public Response mkdirs(String path) throws IOException {
+        Response response = httpCall(routerUrl + "/mkdir?parents=true&path="
+                + URLEncoder.encode(normalize(path), "UTF-8"), "POST", -1, null);
+        synchronized (cache) {
+            cache.clear(); // every level of the chain may have changed
+        }
+        return response;
+    }
+
+    public Response rmRecursive(String path) throws IOException {
+        Response response = httpCall(routerUrl + "/rm?recursive=true&path="
+                + URLEncoder.encode(normalize(path), "UTF-8"), "POST", -1, null);
+        synchronized (cache) {
+            cache.clear(); // everything below path is gone
+        }
+        return response;
+    }
+
+    // 4. Creating an entry: same parent check the router does, but only against the parent's owning shard
+    private Response create(String op, String path) throws IOException {
+        String normalizedPath = normalize(path);
+        String parentPath = getParentPath(normalizedPath);
+        if (parentPath != null) {
+            Response parent = stat(parentPath);
+            if (parent.getStatus() == 404) {
+                return new Response(404, "Parent directory '" + parentPath + "' does not exist");
+            }
+        }
+        invalidate(normalizedPath);
+        try {
+            return call(op, "POST", normalizedPath, false);
+        } finally {
+            invalidate(normalizedPath);
+        }
+    }
+
+    // 5. Reading through the lease cache: a cached answer is valid while our lease on the path lasts,
+    // because the server holds back conflicting writes from other clients until then
+    private Response cachedRead(String op, String path) throws IOException {
+        String normalizedPath = normalize(path);
+        String key = op + " " + normalizedPath;
+
+        synchronized (cache) {
+            CachedRead cached = cache.get(key);
+            if (cached != null && System.nanoTime() < cached.expiresAt) {
+                return cached.response;
+            }
+            cache.remove(key);
+        }
+
+        // 5.1 The lease is counted from before the request, so we never trust it longer than the server does
+        long sentAt = System.nanoTime();
+        Response response = call(op, "GET", normalizedPath, true);
+        if (response.getLeaseMs() > 0) {
+            synchronized (cache) {
+                cache.put(key, new CachedRead(response, sentAt + response.getLeaseMs() * 1_000_000L));
+            }
+        }
+        return response;
+    }
+
+    // Helper method: our own write changes the stat of the path and the listing of its parent
+    private void invalidate(String normalizedPath) {
+        String parentPath = getParentPath(normalizedPath);
+        synchronized (cache) {
+            cache.remove("/stat " + normalizedPath);
+            cache.remove("/readdir " + normalizedPath);
+            if (parentPath != null) {
+                cache.remove("/readdir " + parentPath);
+            }
+        }
+    }
+
+    // 6. Sending a request to the shard owning the path, refreshing the map on a wrong-shard answer
+    private Response call(String op, String method, String path, boolean lease) throws IOException {
+        String normalizedPath = normalize(path);
+        IOException lastError = null;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Placement current = getPlacement();
+            String inode = current.resolver.resolve(normalizedPath); // key the entry is stored under
+            String backend = current.backendFor(inode);
+            String targetUrl = backend + op + "?path=" + URLEncoder.encode(inode, "UTF-8")
+                    + (lease ? "&lease=1" : "");
+
+            try {
+                Response response = httpCall(targetUrl, method, current.epoch, clientId);
+                if (response.getStatus() != 421) {
+                    return new Response(response.getStatus(),
+                            current.resolver.toLogicalBody(op, response.getBody()), response.getLeaseMs());
+                }
+                // 6.1 The server says the path is not its own, so our map is out of date
+                System.out.println("[Client] Wrong shard for '" + normalizedPath + "' at " + backend + ", refreshing placement");
+            } catch (IOException e) {
+                // 6.2 The backend may have been replaced, refresh the map before giving up
+                System.err.println("[Client] Backend error for " + backend + ": " + e.getMessage());
+                lastError = e;
+            }
+            refreshPlacement();
+        }
+
+        if (lastError != null) {
+            throw lastError;
+        }
+        return new Response(421, "Wrong shard for path: " + normalizedPath);
+    }
+
+    // 7. Placement map handling
+    private Placement getPlacement() throws IOException {
+        Placement current = placement;
+        if (current == null || System.currentTimeMillis() - current.fetchedAt > PLACEMENT_TTL_MS) {
+            current = refreshPlacement();
+        }
+        return current;
+    }
+
+    public synchronized Placement refreshPlacement() throws IOException {
+        Response response = httpCall(routerUrl + "/placement", "GET", -1, null);
+        if (response.getStatus() != 200) {
+            throw new IOException("Could not fetch placement map (status: " + response.getStatus() + ")");
+        }
+        placement = Placement.parse(response.getBody());
+        System.out.println("[Client] Placement epoch " + placement.epoch + " -> " + placement.backends);
+        return placement;
+    }
+
+    // Helper method: normalising a path the same way the router does, so both hash to the same shard
+    private static String normalize(String p) {
+        if (p == null || p.trim().isEmpty()) return "/";
+        p = p.replaceAll("/+", "/");
+        if (!p.startsWith("/")) p = "/" + p;
+        if (p.length() > 1 && p.endsWith("/")) p = p.substring(0, p.length() - 1);
+        return p;
+    }
+
+    // Helper method: extracting parent path from a given path
+    // example: "/home/maria" -> "/home", "/home" -> "/", "/" -> null
+    private static String getParentPath(String path) {
+        if (path.equals("/")) {
+            return null; // root has no parent
+        }
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == 0) {
+            return "/"; // parent is root
+        }
+        return lastSlash > 0 ? path.substring(0, lastSlash) : null;
+    }
+
+    // Utility method: making a http call and keeping the status code, unlike the router we need it
+    private static Response httpCall(String url, String method, long epoch, String clientId) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(3000); // 3 sec connection timeout
+        conn.setReadTimeout(5000); // 5 sec read timeout
+        if (epoch >= 0) {
+            conn.setRequestProperty(MetadataServer.PLACEMENT_HEADER, String.valueOf(epoch));
+        }
+        if (clientId != null) {
+            conn.setRequestProperty(MetadataServer.CLIENT_HEADER, clientId);
+        }
+
+        try {
+            int responseCode = conn.getResponseCode();
+            InputStream inputStream = (responseCode >= 200 && responseCode < 300)
+                    ? conn.getInputStream()
+                    : conn.getErrorStream();
+
+            String lease = conn.getHeaderField(MetadataServer.LEASE_HEADER);
+            long leaseMs = lease != null ? Long.parseLong(lease) : 0;
+
+            if (inputStream == null) {
+                return new Response(responseCode, "", leaseMs);
+            }
+            try (InputStream in = inputStream) {
+                return new Response(responseCode, new String(in.readAllBytes(), StandardCharsets.UTF_8), leaseMs);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // Inner class: cached copy of the router's placement map
+    public static class Placement {
+        private final long epoch; // version of the rename table, servers refuse requests made with an older one
+        private final List<String> backends; // backend URLs in hash order
+        private final PathResolver resolver; // copy of the router's rename table
+        private final long fetchedAt = System.currentTimeMillis();
+
+        public Placement(long epoch, List<String> backends, PathResolver resolver) {
+            this.epoch = epoch;
+            this.backends = backends;
+            this.resolver = resolver;
+        }
+
+        // same hash the router uses in pickBackendForWrite/pickBackendForRead
+        public String backendFor(String normalizedPath) {
+            int i = Math.abs(normalizedPath.hashCode()) % backends.size();
+            return backends.get(i);
+        }
+
+        public long getEpoch() { return epoch; }
+        public List<String> getBackends() { return backends; }
+
+        // parsing the router's /placement output
+        static Placement parse(String body) throws IOException {
+            long epoch = -1;
+            SortedMap<Integer, String> byIndex = new TreeMap<>();
+            Map<String, String> renames = new HashMap<>();
+            for (String line : body.split("\n")) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 2 && "epoch".equals(parts[0])) {
+                    epoch = Long.parseLong(parts[1]);
+                } else if (parts.length == 3 && "backend".equals(parts[0])) {
+                    byIndex.put(Integer.parseInt(parts[1]), parts[2]);
+                } else if (parts.length == 3 && "rename".equals(parts[0])) {
+                    renames.put(URLDecoder.decode(parts[1], "UTF-8"), URLDecoder.decode(parts[2], "UTF-8"));
+                }
+            }
+            if (epoch < 0 || byIndex.isEmpty()) {
+                throw new IOException("Malformed placement map");
+            }
+            PathResolver resolver = new PathResolver();
+            resolver.load(epoch, renames);
+            return new Placement(epoch, new ArrayList<>(byIndex.values()), resolver);
+        }
+    }
+
+    // Inner class: a leased answer and the moment (System.nanoTime) it stops being valid
+    private static class CachedRead {
+        private final Response response;
+        private final long expiresAt;
+
+        CachedRead(Response response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Inner class: status code + body of a metadata server response
+    public static class Response {
+        private final int status;
+        private final String body;
+        private final long leaseMs; // read lease granted with this answer, 0 if none
+
+        public Response(int status, String body) {
+            this(status, body, 0);
+        }
+
+        public Response(int status, String body, long leaseMs) {
+            this.status = status;
+            this.body = body;
+            this.leaseMs = leaseMs;
+        }
+
+        public int getStatus() { return status; }
+        public String getBody() { return body; }
+        public long getLeaseMs() { return leaseMs; }
+    }
+}
@@ -1,413 +1,1494 @@
-// importing libraries
-import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.HttpExchange;
-import java.lang.*;
-
-public class MetadataServer {
-    private final int port; // port number that the server listens on
-    private final String serverId; // unique id for the server instance
-    private final Map<String, MetadataEntry> metadata; // in-memory storage of file metadata
-    private HttpServer server; // http server instance
-
-    // 1. Initialise + declare the file where we persistenty store metadata so that it survives server restarts
-    private static final String DATA_FILE = "/data/meta.txt";
-
-    // 2. Constructor
-    public MetadataServer(int port, String serverId) {
-        this.port = port;
-        this.serverId = serverId;
-        this.metadata = new ConcurrentHashMap<>(); // thread-safe map for concurrent access
-
-        // Auto-create root directory if this server is responsible for it
-        String rootPath = "/";
-        if (isResponsibleForPath(rootPath)) {
-            if (!metadata.containsKey(rootPath)) {
-                metadata.put(rootPath, new MetadataEntry(rootPath, "dir", null, System.currentTimeMillis()));
-                save();
-                System.out.println("[Server " + serverId + "] Auto-created root directory");
-            }
-        }
-
-        load(); // load any existing metadata from disk
-        System.out.println("[Server " + serverId + "] Initialized");
-    }
-
-    // Helper: simple hash-based responsibility check
-    private boolean isResponsibleForPath(String path) {
-        int hash = Math.abs(path.hashCode());
-        int serverIndex = hash % 3;
-        return Integer.parseInt(serverId) == (serverIndex + 1);
-    }
-
-    // 3. Load metadata from disk file when server starts
-    private void load() {
-        try {
-            Path file = Paths.get(DATA_FILE);
-            if (Files.exists(file)) {
-                // 3.1 Try to read the file line by line
-                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        line = line.trim();
-                        if (line.isEmpty()) continue;
-
-                        String[] parts = line.split("\\|"); // each line format: path/type/parent/timestamp
-                        if (parts.length == 4) {
-                            String path = parts[0];
-                            String type = parts[1];
-                            String parent = parts[2].equals("null") ? null : parts[2];
-                            long timestamp = Long.parseLong(parts[3]);
-                            // 3.2 Restoring the emtadata entry to memory
-                            metadata.put(path, new MetadataEntry(path, type, parent, timestamp));
-                        }
-                    }
-                }
-                System.out.println("[Server " + serverId + "] Loaded " + metadata.size() + " entries from checkpoint");
-            }
-        } catch (Exception e) {
-            System.out.println("[Server " + serverId + "] No checkpoint found or error loading: " + e.getMessage());
-        }
-    }
-
-    // 4. Saving the current metadata to the disk, this is called after each change
-    private void save() {
-        try {
-            Path file = Paths.get(DATA_FILE);
-            Files.createDirectories(file.getParent()); // creates the directory if it does not exist
-            // 4.1 Writing all metadata entries to file
-            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
-                for (MetadataEntry entry : metadata.values()) {
-                    writer.printf("%s|%s|%s|%d%n",
-                            entry.getPath(),
-                            entry.getType(),
-                            entry.getParent() != null ? entry.getParent() : "null", // here parent is saved
-                            entry.getTimestamp());
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("[Server " + serverId + "] Error saving checkpoint: " + e.getMessage());
-        }
-    }
-
-    // 5. Starting the http server + register API endpoints
-    public void start() throws IOException {
-        server = HttpServer.create(new InetSocketAddress(port), 0);
-
-        // 5.1 Register endpoints that the server will handle
-        server.createContext("/mkdir", this::handleMkdir);
-        server.createContext("/touch", this::handleTouch);
-        server.createContext("/readdir", this::handleReaddir); // list directory contents
-        server.createContext("/stat", this::handleStat); // get file/directory info
-        server.createContext("/rm", this::handleRm); // remove file/directory
-        server.createContext("/dump", this::handleDump); // show all metadata (for debugging)
-        //server.createContext("/tree", this::handleTree); // show the tree of the directory with relative paths
-        //server.createContext("/fulltree", this::handleFullTree); // show the tree of the directory
-
-        server.start();
-        System.out.println("[Server " + serverId + "] port=" + port);
-    }
-
-    // 6. Handling the creation of a new directory
-    private void handleMkdir(HttpExchange exchange) throws IOException {
-        if (!"POST".equals(exchange.getRequestMethod())) {
-            sendResponse(exchange, 405, "Method not allowed");
-            return;
-        }
-
-        // 6.1 Extracting the path param from the URL query string
-        String query = exchange.getRequestURI().getQuery();
-        String path = getQueryParam(query, "path");
-
-        if (path == null || path.isEmpty()) {
-            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
-            return;
-        }
-
-        try {
-            // 6.2 Checking if the path already exists
-            if (metadata.containsKey(path)) {
-                sendResponse(exchange, 409, "Path already exists");
-                return;
-            }
-
-            // 6.3 Creating a new directory entry + save to disk
-            String parent = getParentPath(path);
-            MetadataEntry entry = new MetadataEntry(path, "dir", parent, System.currentTimeMillis());
-            metadata.put(path, entry);
-            save(); // persist the change
-            System.out.println("[Server " + serverId + "] Created directory: " + path);
-            sendResponse(exchange, 200, "Directory created: " + path);
-        } catch (Exception e) {
-            sendResponse(exchange, 500, "Error: " + e.getMessage());
-        }
-    }
-
-    // 7. Handling the creation of a new file
-    private void handleTouch(HttpExchange exchange) throws IOException {
-        if (!"POST".equals(exchange.getRequestMethod())) {
-            sendResponse(exchange, 405, "Method not allowed");
-            return;
-        }
-
-        String query = exchange.getRequestURI().getQuery();
-        String path = getQueryParam(query, "path");
-
-        if (path == null || path.isEmpty()) {
-            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
-            return;
-        }
-
-        try {
-            if (metadata.containsKey(path)) {
-                sendResponse(exchange, 409, "File already exists");
-                return;
-            }
-
-            // 7.1 Creating a new file entry + save to disk
-            String parent = getParentPath(path);
-            MetadataEntry entry = new MetadataEntry(path, "file", parent, System.currentTimeMillis());
-            metadata.put(path, entry);
-            save();
-            System.out.println("[Server " + serverId + "] Created file: " + path);
-            sendResponse(exchange, 200, "File created: " + path);
-        } catch (Exception e) {
-            sendResponse(exchange, 500, "Error: " + e.getMessage());
-        }
-    }
-
-    // 8. Handling listing directory contents
-    private void handleReaddir(HttpExchange exchange) throws IOException {
-        String requestMethod = exchange.getRequestMethod();
-        if (!"GET".equals(requestMethod)) {
-            System.out.println("Unsupported method: " + requestMethod);
-            System.out.flush();
-            sendResponse(exchange, 405, "Method not allowed");
-            return;
-        }
-
-        String query = exchange.getRequestURI().getQuery();
-        String path = getQueryParam(query, "path");
-
-        if (path == null || path.isEmpty()) {
-            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
-            return;
-        }
-
-        try {
-            // 8.1 Checking if the path exists
-            MetadataEntry entry = metadata.get(path);
-            if (entry == null) {
-                sendResponse(exchange, 404, "Path not found");
-                return;
-            }
-
-            // 8.2 Verifying that it is a directory
-            if (!"dir".equals(entry.getType())) {
-                sendResponse(exchange, 400, "Path is not a directory");
-                return;
-            }
-
-            // 8.3 Finding all children of the directory
-            List<String> children = new ArrayList<>();
-            for (Map.Entry<String, MetadataEntry> e : metadata.entrySet()) {
-                // aka entries where this path is the parent
-                if (path.equals(e.getValue().getParent())) {
-                    children.add(e.getKey());
-                }
-            }
-
-            // 8.4 Returning the sorted list of children
-            Collections.sort(children);
-            String response = String.join(", ", children);
-            System.out.println("[Server " + serverId + "] Listed directory: " + path);
-            sendResponse(exchange, 200, response.isEmpty() ? "(empty)" : response);
-        } catch (Exception e) {
-            sendResponse(exchange, 500, "Error: " + e.getMessage());
-        }
-    }
-
-    // 9. Handling getting file/directory metadata
-    private void handleStat(HttpExchange exchange) throws IOException {
-        if (!"GET".equals(exchange.getRequestMethod())) {
-            sendResponse(exchange, 405, "Method not allowed");
-            return;
-        }
-
-        String query = exchange.getRequestURI().getQuery();
-        String path = getQueryParam(query, "path");
-
-        if (path == null || path.isEmpty()) {
-            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
-            return;
-        }
-
-        try {
-            MetadataEntry entry = metadata.get(path);
-            if (entry == null) {
-                sendResponse(exchange, 404, "Path not found");
-                return;
-            }
-
-            // 9.1 Formating + returning the metadata
-            String response = String.format("Path: %s, Type: %s, Parent: %s, Timestamp: %d",
-                    entry.getPath(), entry.getType(),
-                    entry.getParent() != null ? entry.getParent() : "root",
-                    entry.getTimestamp());
-            System.out.println("[Server " + serverId + "] Stat: " + path);
-            sendResponse(exchange, 200, response);
-        } catch (Exception e) {
-            sendResponse(exchange, 500, "Error: " + e.getMessage());
-        }
-    }
-
-    // 10. Handling the removal of a file or directory
-    private void handleRm(HttpExchange exchange) throws IOException {
-        if (!"POST".equals(exchange.getRequestMethod())) {
-            sendResponse(exchange, 405, "Method not allowed");
-            return;
-        }
-
-        String query = exchange.getRequestURI().getQuery();
-        String path = getQueryParam(query, "path");
-
-        if (path == null || path.isEmpty()) {
-            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
-            return;
-        }
-
-        try {
-            MetadataEntry entry = metadata.get(path);
-            if (entry == null) {
-                sendResponse(exchange, 404, "Path not found");
-                return;
-            }
-
-            // 10.1 Check if directory is empty (only for directories)
-            if ("dir".equals(entry.getType())) {
-                for (Map.Entry<String, MetadataEntry> e : metadata.entrySet()) {
-                    if (path.equals(e.getValue().getParent())) {
-                        sendResponse(exchange, 400, "Directory not empty");
-                        return;
-                    }
-                }
-            }
-
-            // 10.2 Remove the entry + save to disk
-            metadata.remove(path);
-            save();
-            System.out.println("[Server " + serverId + "] Removed: " + path);
-            sendResponse(exchange, 200, "Removed: " + path);
-        } catch (Exception e) {
-            sendResponse(exchange, 500, "Error: " + e.getMessage());
-        }
-    }
-
-    // 11. Dumping all metadata stored on the server
-    private void handleDump(HttpExchange exchange) throws IOException {
-        if (!"GET".equals(exchange.getRequestMethod())) {
-            sendResponse(exchange, 405, "Method not allowed");
-            return;
-        }
-
-        try {
-            StringBuilder sb = new StringBuilder();
-            sb.append("[Server ").append(serverId).append("]\n");
-
-            // 11.1 Getting all entries sorted by path for readble output
-            List<MetadataEntry> entries = new ArrayList<>(metadata.values());
-            entries.sort(Comparator.comparing(MetadataEntry::getPath));
-
-            // 11.2 Formating each entry
-            for (MetadataEntry entry : entries) {
-                sb.append(String.format("  %s -> {type=%s, parent=%s, ts=%d}\n",
-                        entry.getPath(),
-                        entry.getType(),
-                        entry.getParent() != null ? entry.getParent() : "root",
-                        entry.getTimestamp()));
-            }
-
-            if (entries.isEmpty()) {
-                sb.append("  (no entries)\n");
-            }
-
-            System.out.println("[Server " + serverId + "] Dump requested");
-            sendResponse(exchange, 200, sb.toString());
-        } catch (Exception e) {
-            sendResponse(exchange, 500, "Error: " + e.getMessage());
-        }
-    }
-
-    // Helper method: extracting parent path from a given path
-    // example: "/home/maria" -> "/home", "/home" -> "/", "/" -> null
-    private String getParentPath(String path) {
-        if (path.equals("/")) {
-            return null; // root has no parent
-        }
-        int lastSlash = path.lastIndexOf('/');
-        if (lastSlash == 0) {
-            return "/"; // parent is root
-        }
-        return lastSlash > 0 ? path.substring(0, lastSlash) : null;
-    }
-
-    // Helper method: extracting query param from URL
-    private String getQueryParam(String query, String key) {
-        if (query == null) return null;
-        String[] params = query.split("&");
-        for (String param : params) {
-            String[] pair = param.split("=", 2);
-            if (pair.length == 2 && key.equals(pair[0])) {
-                try {
-                    return java.net.URLDecoder.decode(pair[1], StandardCharsets.UTF_8.name());
-                } catch (Exception e) {
-                    return pair[1];
-                }
-            }
-        }
-        return null;
-    }
-
-    // Helper method: sending HTTP response
-    private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
-        byte[] bytes = response == null ? new byte[0] : response.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(statusCode, bytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(bytes);
-        }
-    }
-
-    // Inner class: representing a single metadata entry
-    public static class MetadataEntry {
-        private final String path; // full path
-        private final String type; // "file" or "dir"
-        private final String parent; // parent directory path
-        private final long timestamp; // creation time
-
-        public MetadataEntry(String path, String type, String parent, long timestamp) {
-            this.path = path;
-            this.type = type;
-            this.parent = parent;
-            this.timestamp = timestamp;
-        }
-
-        public String getPath() { return path; }
-        public String getType() { return type; }
-        public String getParent() { return parent; }
-        public long getTimestamp() { return timestamp; }
-    }
-
-    // 13. Stop the HTTP server
-    public void stop() {
-        if (server != null) {
-            server.stop(0);
-            System.out.println("[Server " + serverId + "] HTTP server stopped");
-        }
-    }
-}
+// importing libraries
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpExchange;
+import java.lang.*;
+
+public class MetadataServer {
+    private final int port; // port number that the server listens on
+    private final String serverId; // unique id for the server instance
+    private final int numServers; // number of shards in the cluster, used for the placement check
+    private final ConcurrentHashMap<String, MetadataEntry> metadata; // in-memory storage of file metadata
+    private final LeaseTable leases; // read leases granted to caching clients
+    private final Checkpointer<MetadataEntry> checkpointer; // writes meta.txt in the background
+    private final BloomFilter.Counting bloom; // all keys of this shard, mirrored by the router
+    private final ShardStats stats = new ShardStats(); // counters and hot keys, updated as things happen
+    private final ForkJoinPool finders = new ForkJoinPool(FIND_THREADS); // find scans, not on the common pool
+    private final Object[] dirLocks = new Object[64]; // stripes by directory: a child counted vs. rm checking it is empty
+    private final WatchHub watches; // change notification streams
+    private final AdmissionController admission; // bounded workers and concurrency limits
+    private volatile long epoch; // newest placement epoch (rename table version) the router told us about
+    private final ReadWriteLock epochLock = new ReentrantReadWriteLock(); // requests checked against the epoch vs. raising it
+    private final Map<Long, Map<String, Boolean>> fences = new ConcurrentHashMap<>(); // epoch that lifts it -> scope of an "rm -r", indexed
+    private HttpServer server; // http server instance
+    private RpcServer rpcServer; // binary protocol server, only when RPC_PORT is set
+
+    // 1. Initialise + declare the file where we persistenty store metadata so that it survives server restarts
+    private static final String DATA_FILE = "/data/meta.txt";
+    private static final String LOG_FILE = "/data/meta.log"; // changes since the last checkpoint, on disk before they are acknowledged
+
+    // Header sent by clients that route directly to shards using the router's placement map;
+    // the epoch is kept on disk, a client with an older map must not get in after a restart
+    static final String PLACEMENT_HEADER = "X-Placement-Epoch";
+    static final long ANY_EPOCH = Long.MAX_VALUE; // requests without the header (legacy, binary protocol) are not checked
+    private static final String EPOCH_FILE = "/data/epoch.txt";
+
+    // Headers used by caching clients: who is asking, and how long the answer may be served from cache
+    static final String CLIENT_HEADER = "X-Client-Id";
+    static final String LEASE_HEADER = "X-Lease-Ms";
+    static final String LEASE_WAIT_HEADER = "X-Lease-Wait-Ms"; // time a change waited for other clients' leases
+    private static final long LEASE_MS = Long.parseLong(System.getenv().getOrDefault("LEASE_MS", "2000"));
+
+    // A checkpoint is written after this many ms, or after this many changes, whichever comes first
+    private static final long CHECKPOINT_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("CHECKPOINT_INTERVAL_MS", "1000"));
+    private static final long CHECKPOINT_MUTATIONS = Long.parseLong(System.getenv().getOrDefault("CHECKPOINT_MUTATIONS", "1000"));
+
+    // Size of the bloom filter of this shard's keys, in bits
+    private static final int BLOOM_BITS = Integer.parseInt(System.getenv().getOrDefault("BLOOM_BITS", String.valueOf(BloomFilter.DEFAULT_BITS)));
+
+    // Every answer carries the filter's sequence number, so the router can tell whether its copy is current;
+    // with nothing to push, an empty push still tells it this often
+    static final String BLOOM_SEQ_HEADER = "X-Bloom-Seq";
+    private static final long BLOOM_HEARTBEAT_MS = 50;
+
+    // File attributes: new files get the default replication, and a block list is capped so one
+    // entry never takes more than 64 bytes + 16 per block (+ its path strings), see MetadataEntry
+    private static final int DEFAULT_REPLICATION = Math.min(BlockList.MAX_LOCATIONS,
+            Integer.parseInt(System.getenv().getOrDefault("DEFAULT_REPLICATION", "3")));
+    private static final int MAX_BLOCKS = Integer.parseInt(System.getenv().getOrDefault("MAX_BLOCKS_PER_FILE", "4096"));
+    private static final int DIR_MODE = 0755;
+    private static final int FILE_MODE = 0644;
+
+    // A find scans this many entries per task, smaller maps are scanned by the calling thread alone
+    private static final long FIND_BATCH = 10000;
+    private static final int FIND_QUEUE = 1024; // matches between the scan and the response writer
+    private static final int FIND_THREADS = Integer.parseInt(System.getenv().getOrDefault("FIND_THREADS",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final long FIND_STALL_MS = 30000; // a reader taking nothing for this long ends its find
+
+    // Attributes a stat can be narrowed down to with fields=a,b,c ("all" for every one)
+    private static final List<String> STAT_FIELDS = List.of("path", "type", "parent", "ctime", "size",
+            "mtime", "atime", "mode", "replication", "blocks");
+
+    // 2. Constructor
+    public MetadataServer(int port, String serverId) {
+        this(port, serverId, 3);
+    }
+
+    public MetadataServer(int port, String serverId, int numServers) {
+        this.port = port;
+        this.serverId = serverId;
+        this.numServers = numServers;
+        this.metadata = new ConcurrentHashMap<>(); // thread-safe map for concurrent access
+        this.leases = new LeaseTable(LEASE_MS);
+        this.admission = new AdmissionController("Server " + serverId, false);
+        this.watches = new WatchHub("Server " + serverId);
+        this.checkpointer = new Checkpointer<>(metadata, Paths.get(DATA_FILE), Paths.get(LOG_FILE), MetadataServer::formatEntry,
+                CHECKPOINT_INTERVAL_MS, CHECKPOINT_MUTATIONS, "Server " + serverId);
+        this.bloom = new BloomFilter.Counting(BLOOM_BITS, BloomFilter.DEFAULT_HASHES);
+        Arrays.setAll(dirLocks, i -> new Object());
+
+        load(); // load any existing metadata from disk
+        loadEpoch();
+        metadata.keySet().forEach(bloom::add);
+        metadata.values().forEach(this::countAdded);
+
+        // Auto-create root directory if this server is responsible for it (after loading, so an
+        // existing checkpoint is not replaced by one holding only the root)
+        String rootPath = "/";
+        if (isResponsibleForPath(rootPath)) {
+            if (createEntry(new MetadataEntry(rootPath, "dir", null, System.currentTimeMillis()))) {
+                System.out.println("[Server " + serverId + "] Auto-created root directory");
+            }
+        }
+
+        checkpointer.start();
+        System.out.println("[Server " + serverId + "] Initialized");
+    }
+
+    // Helper: simple hash-based responsibility check
+    private boolean isResponsibleForPath(String path) {
+        int hash = Math.abs(path.hashCode());
+        int serverIndex = hash % numServers;
+        return Integer.parseInt(serverId) == (serverIndex + 1);
+    }
+
+    // 3. Load metadata from disk file when server starts
+    private void load() {
+        try {
+            Path file = Paths.get(DATA_FILE);
+            if (Files.exists(file)) {
+                // 3.1 Try to read the file line by line
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
+
+                        MetadataEntry entry = parseEntry(line);
+                        if (entry != null) {
+                            metadata.put(entry.getPath(), entry);
+                        }
+                    }
+                }
+                System.out.println("[Server " + serverId + "] Loaded " + metadata.size() + " entries from checkpoint");
+            }
+        } catch (Exception e) {
+            System.out.println("[Server " + serverId + "] No checkpoint found or error loading: " + e.getMessage());
+        }
+
+        // 3.3 Changes acknowledged after the checkpoint started come from the log
+        try {
+            checkpointer.replay(line -> {
+                MetadataEntry entry = parseEntry(line.trim());
+                if (entry == null) throw new IllegalArgumentException(line);
+                metadata.put(entry.getPath(), entry);
+            }, metadata::remove);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read log " + LOG_FILE, e);
+        }
+    }
+
+    // Helper method: one checkpoint or log line back into an entry, null if it is not one
+    private static MetadataEntry parseEntry(String line) {
+        String[] parts = line.split("\\|", -1); // each line format: path/type/parent/timestamp[/attributes]
+        if (parts.length != 4 && parts.length != 10) {
+            return null;
+        }
+        String path = parts[0];
+        String type = parts[1];
+        String parent = parts[2].equals("null") ? null : parts[2];
+        long timestamp = Long.parseLong(parts[3]);
+        // 3.2 Restoring the emtadata entry to memory; checkpoints from before file
+        // attributes existed have 4 fields, their entries get the defaults
+        MetadataEntry entry = new MetadataEntry(path, type, parent, timestamp);
+        if (parts.length == 10) {
+            entry = new MetadataEntry(path, type, parent, timestamp,
+                    Long.parseLong(parts[4]), Long.parseLong(parts[5]), Long.parseLong(parts[6]),
+                    Integer.parseInt(parts[7], 8), Integer.parseInt(parts[8]),
+                    BlockList.parse(parts[9], Integer.MAX_VALUE));
+        }
+        return entry;
+    }
+
+    // 4. Format of one checkpoint line: path|type|parent|timestamp|size|mtime|atime|mode|replication|blocks
+    // (the Checkpointer writes the file), mode in octal and blocks as in BlockList
+    private static String formatEntry(MetadataEntry entry) {
+        return String.format("%s|%s|%s|%d|%d|%d|%d|%o|%d|%s%n",
+                entry.getPath(),
+                entry.getType(),
+                entry.getParent() != null ? entry.getParent() : "null", // here parent is saved
+                entry.getTimestamp(),
+                entry.getSize(),
+                entry.getMtime(),
+                entry.getAtime(),
+                entry.getMode(),
+                entry.getReplication(),
+                BlockList.format(entry.getBlocks()));
+    }
+
+    // 4.1 Every change of the map goes through these helpers, so a running checkpoint still sees
+    // the map as it was when it started, and the change is in the log on disk when they return
+    // (changes of a batch once the batch lets go of the mutation lock, see Checkpointer.sync).
+    // An entry is counted as a child of its directory under the directory's stripe, together with
+    // the change, so rm's emptiness check under that stripe sees the map as it is
+    private boolean createEntry(MetadataEntry entry) {
+        Lock lock = checkpointer.mutationLock();
+        lock.lock();
+        try {
+            synchronized (dirLock(entry.getParent())) {
+                checkpointer.beforeMutation(entry.getPath());
+                if (metadata.putIfAbsent(entry.getPath(), entry) != null) {
+                    return false;
+                }
+                bloom.add(entry.getPath()); // before anyone can see the entry but not its filter bits
+                checkpointer.mutated(entry.getPath(), entry);
+                countAdded(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        checkpointer.sync();
+        watches.publish("create", entry.getType(), entry.getPath(), entry.getParent());
+        return true;
+    }
+
+    private boolean replaceEntry(MetadataEntry old, MetadataEntry updated) {
+        Lock lock = checkpointer.mutationLock();
+        lock.lock();
+        try {
+            synchronized (dirLock(updated.getParent())) {
+                checkpointer.beforeMutation(old.getPath());
+                if (!metadata.replace(old.getPath(), old, updated)) {
+                    return false;
+                }
+                checkpointer.mutated(updated.getPath(), updated);
+                countRemoved(old);
+                countAdded(updated);
+            }
+        } finally {
+            lock.unlock();
+        }
+        checkpointer.sync();
+        if (Objects.equals(old.getParent(), updated.getParent())) {
+            watches.publish("update", updated.getType(), updated.getPath(), updated.getParent());
+        } else { // moved: gone from the old directory, new in the other one
+            watches.publish("remove", old.getType(), old.getPath(), old.getParent());
+            watches.publish("create", updated.getType(), updated.getPath(), updated.getParent());
+        }
+        return true;
+    }
+
+    // onlyIfEmpty: a directory with children on this shard is left alone (false, like a missing entry)
+    private boolean removeEntry(String path, boolean onlyIfEmpty) {
+        Lock lock = checkpointer.mutationLock();
+        lock.lock();
+        MetadataEntry removed;
+        try {
+            synchronized (dirLock(path)) {
+                if (onlyIfEmpty && stats.childCount(path) > 0) {
+                    return false;
+                }
+                checkpointer.beforeMutation(path);
+                removed = metadata.remove(path);
+                if (removed == null) {
+                    return false;
+                }
+                bloom.remove(path);
+                checkpointer.mutated(path, null);
+                countRemoved(removed);
+            }
+        } finally {
+            lock.unlock();
+        }
+        checkpointer.sync();
+        watches.publish("remove", removed.getType(), removed.getPath(), removed.getParent());
+        return true;
+    }
+
+    // Helper method: the stripe of a directory, taken inside the mutation lock (a batch holds that lock
+    // across many changes, so the other way round could deadlock with a waiting checkpoint)
+    private Object dirLock(String dir) {
+        return dirLocks[Math.floorMod(Objects.hashCode(dir), dirLocks.length)];
+    }
+
+    private void countAdded(MetadataEntry entry) {
+        stats.added(entry.getType(), entry.getParent(), formatEntry(entry).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private void countRemoved(MetadataEntry entry) {
+        stats.removed(entry.getType(), entry.getParent(), formatEntry(entry).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    // 5. Starting the http server + register API endpoints
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), AdmissionController.BACKLOG);
+
+        // 5.1 Register endpoints that the server will handle, client requests go through admission control
+        server.createContext("/mkdir", admission.admit("mkdir", this::handleMkdir));
+        server.createContext("/touch", admission.admit("touch", this::handleTouch));
+        server.createContext("/readdir", admission.admit("readdir", this::handleReaddir)); // list directory contents
+        server.createContext("/stat", admission.admit("stat", this::handleStat)); // get file/directory info, stat?fields=size,mtime for some attributes
+        server.createContext("/setattr", admission.admit("setattr", this::handleSetattr)); // change size, times, mode, replication, blocks
+        server.createContext("/rm", admission.admit("rm", this::handleRm)); // remove file/directory
+        server.createContext("/rename", admission.admit("rename", this::handleRename)); // move an entry under a new parent
+        server.createContext("/mkdirs", admission.admit("mkdirs", this::handleMkdirs)); // batch part of a recursive mkdir
+        server.createContext("/rmtree", admission.admit("rmtree", this::handleRmTree)); // batch part of a recursive rm
+        server.createContext("/dump", admission.admit("dump", this::handleDump)); // show all metadata (for debugging)
+        server.createContext("/bloom", admission.shed(this::handleBloom)); // bloom filter of this shard's keys
+        server.createContext("/admission", admission.shed(ex -> sendResponse(ex, 200, admission.stats()))); // limits and rejections
+        server.createContext("/health", admission.shed(this::handleHealth)); // cheap liveness probe for the router
+        server.createContext("/epoch", admission.shed(this::handleEpoch)); // placement epoch, pushed by the router when it changes
+        server.createContext("/stats", admission.shed(ex -> sendResponse(ex, 200, stats.report()))); // counters and hot keys
+        server.createContext("/watch", admission.shed(this::handleWatch)); // stream of changes, long-lived
+        server.createContext("/find", admission.admit("find", this::handleFind)); // entries matching predicates
+        //server.createContext("/tree", this::handleTree); // show the tree of the directory with relative paths
+        //server.createContext("/fulltree", this::handleFullTree); // show the tree of the directory
+
+        // 5.2 Writes may wait for read leases to expire, so they must not block the dispatcher thread;
+        // the workers and their queue are bounded, what does not fit is rejected right away
+        server.setExecutor(admission.executor());
+
+        server.start();
+        System.out.println("[Server " + serverId + "] port=" + port);
+    }
+
+    // 5.3 Pushing flipped bloom filter bits to the router as they happen, so the router can answer
+    // lookups of paths that do not exist without asking us (the router also pulls, in case a push is lost)
+    public void startBloomPush(String routerUrl) {
+        Thread pusher = new Thread(() -> {
+            long pushed = -1; // the router syncs the full filter first, so start with whatever it has
+            long pushedAt = 0;
+            while (true) {
+                try {
+                    Thread.sleep(20);
+                    long seq = bloom.getSeq();
+                    if (pushed < 0) {
+                        pushed = seq;
+                        continue;
+                    }
+                    if (seq == pushed && System.currentTimeMillis() - pushedAt < BLOOM_HEARTBEAT_MS) continue;
+
+                    long builtAt = System.currentTimeMillis(); // the changes go at least this far, see ShardFilters
+                    String changes = bloom.changesSince(pushed);
+                    String body = changes != null ? "at " + builtAt + "\n" + changes : "reset\n"; // too far behind, router re-syncs
+                    URL url = new URL(routerUrl + "/bloom?server=" + serverId);
+                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                    conn.setRequestMethod("POST");
+                    conn.setConnectTimeout(1000);
+                    conn.setReadTimeout(2000);
+                    conn.setDoOutput(true);
+                    try (OutputStream os = conn.getOutputStream()) {
+                        os.write(body.getBytes(StandardCharsets.UTF_8));
+                    }
+                    if (conn.getResponseCode() == 200) {
+                        pushed = seq;
+                        pushedAt = System.currentTimeMillis();
+                    }
+                    conn.disconnect();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    // router not reachable right now, it catches up by pulling
+                }
+            }
+        }, "bloom-push");
+        pusher.setDaemon(true);
+        pusher.start();
+        System.out.println("[Server " + serverId + "] pushing bloom filter updates to " + routerUrl);
+    }
+
+    // 5.4 Optional binary protocol next to the http API, for clients that pipeline small operations
+    public void startRpc(int rpcPort) throws IOException {
+        rpcServer = new RpcServer(rpcPort, admission.admit(this::handleRpc), admission.workers());
+        rpcServer.start();
+        System.out.println("[Server " + serverId + "] rpc port=" + rpcPort);
+    }
+
+    // 6. Handling the creation of a new directory
+    private void handleMkdir(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        // 6.1 Extracting the path param from the URL query string
+        String query = exchange.getRequestURI().getQuery();
+        String path = getQueryParam(query, "path");
+
+        if (path == null || path.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
+            return;
+        }
+        if (isMisdirected(exchange, path)) {
+            sendResponse(exchange, 421, "Wrong shard for path: " + path);
+            return;
+        }
+
+        Reply reply = mkdir(path, exchange.getRequestHeaders().getFirst(CLIENT_HEADER), requestEpoch(exchange));
+        sendResponse(exchange, reply.getStatus(), reply.getBody());
+    }
+
+    // 6.2 Creating a new directory, shared by the http and binary endpoints
+    Reply mkdir(String path, String clientId, long requestEpoch) {
+        stats.accessed("mkdir", path, getParentPath(path));
+        List<String> leased = leasedPathsAffectedBy(path);
+        try {
+            // 6.3 Waiting until no client may still serve a cached answer for this path or its parent
+            awaitLeases(clientId, leased);
+
+            // 6.4 Creating a new directory entry if the path does not exist yet, logged and synced before the reply
+            return underEpoch(requestEpoch, () -> {
+                if (fenced(path)) {
+                    return new Reply(404, "Parent directory is being removed");
+                }
+                String parent = getParentPath(path);
+                MetadataEntry entry = new MetadataEntry(path, "dir", parent, System.currentTimeMillis());
+                if (!createEntry(entry)) {
+                    return new Reply(409, "Path already exists");
+                }
+                System.out.println("[Server " + serverId + "] Created directory: " + path);
+                return new Reply(200, "Directory created: " + path);
+            });
+        } catch (Exception e) {
+            return new Reply(500, "Error: " + e.getMessage());
+        } finally {
+            leases.release(leased);
+        }
+    }
+
+    // 7. Handling the creation of a new file
+    private void handleTouch(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        String path = getQueryParam(query, "path");
+
+        if (path == null || path.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
+            return;
+        }
+        if (isMisdirected(exchange, path)) {
+            sendResponse(exchange, 421, "Wrong shard for path: " + path);
+            return;
+        }
+
+        Reply reply = touch(path, exchange.getRequestHeaders().getFirst(CLIENT_HEADER), requestEpoch(exchange));
+        sendResponse(exchange, reply.getStatus(), reply.getBody());
+    }
+
+    // 7.1 Creating a new file
+    Reply touch(String path, String clientId, long requestEpoch) {
+        stats.accessed("touch", path, getParentPath(path));
+        List<String> leased = leasedPathsAffectedBy(path);
+        try {
+            awaitLeases(clientId, leased);
+
+            // 7.2 Creating a new file entry
+            return underEpoch(requestEpoch, () -> {
+                if (fenced(path)) {
+                    return new Reply(404, "Parent directory is being removed");
+                }
+                String parent = getParentPath(path);
+                MetadataEntry entry = new MetadataEntry(path, "file", parent, System.currentTimeMillis());
+                if (!createEntry(entry)) {
+                    return new Reply(409, "File already exists");
+                }
+                System.out.println("[Server " + serverId + "] Created file: " + path);
+                return new Reply(200, "File created: " + path);
+            });
+        } catch (Exception e) {
+            return new Reply(500, "Error: " + e.getMessage());
+        } finally {
+            leases.release(leased);
+        }
+    }
+
+    // 8. Handling listing directory contents
+    private void handleReaddir(HttpExchange exchange) throws IOException {
+        String requestMethod = exchange.getRequestMethod();
+        if (!"GET".equals(requestMethod)) {
+            System.out.println("Unsupported method: " + requestMethod);
+            System.out.flush();
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        String path = getQueryParam(query, "path");
+
+        if (path == null || path.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
+            return;
+        }
+        if (isMisdirected(exchange, path)) {
+            sendResponse(exchange, 421, "Wrong shard for path: " + path);
+            return;
+        }
+
+        // 8.1 Granting a lease before reading, so a concurrent write waits for it
+        Reply reply = underEpoch(requestEpoch(exchange), () -> {
+            grantLease(exchange, path);
+            return readdir(path);
+        });
+        sendResponse(exchange, reply.getStatus(), reply.getBody());
+    }
+
+    // 8.2 Listing a directory
+    Reply readdir(String path) {
+        stats.accessed("readdir", path, path);
+        try {
+            // 8.3 Checking if the path exists
+            MetadataEntry entry = metadata.get(path);
+            if (entry == null) {
+                return new Reply(404, "Path not found");
+            }
+
+            // 8.4 Verifying that it is a directory
+            if (!"dir".equals(entry.getType())) {
+                return new Reply(400, "Path is not a directory");
+            }
+
+            // 8.5 Finding all children of the directory
+            List<String> children = new ArrayList<>();
+            for (Map.Entry<String, MetadataEntry> e : metadata.entrySet()) {
+                // aka entries where this path is the parent
+                if (path.equals(e.getValue().getParent())) {
+                    children.add(e.getKey());
+                }
+            }
+
+            // 8.6 Returning the sorted list of children
+            Collections.sort(children);
+            String response = String.join("\n", children); // one per line, a name cannot hold a line break
+            System.out.println("[Server " + serverId + "] Listed directory: " + path);
+            return new Reply(200, response.isEmpty() ? "(empty)" : response);
+        } catch (Exception e) {
+            return new Reply(500, "Error: " + e.getMessage());
+        }
+    }
+
+    // 9. Handling getting file/directory metadata
+    private void handleStat(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        String path = getQueryParam(query, "path");
+
+        if (path == null || path.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
+            return;
+        }
+        if (isMisdirected(exchange, path)) {
+            sendResponse(exchange, 421, "Wrong shard for path: " + path);
+            return;
+        }
+
+        String fields = getQueryParam(query, "fields");
+        List<String> projection = null;
+        if (fields != null) {
+            projection = fields.equals("all") ? STAT_FIELDS : Arrays.asList(fields.split(","));
+            if (!STAT_FIELDS.containsAll(projection)) {
+                sendResponse(exchange, 400, "Invalid 'fields' parameter, known fields: " + String.join(",", STAT_FIELDS));
+                return;
+            }
+        }
+
+        List<String> wanted = projection;
+        Reply reply = underEpoch(requestEpoch(exchange), () -> {
+            grantLease(exchange, path); // a miss is leased too, creating the path has to wait for it
+            return wanted == null ? stat(path) : stat(path, wanted);
+        });
+        sendResponse(exchange, reply.getStatus(), reply.getBody());
+    }
+
+    // 9.1 Getting file/directory metadata
+    Reply stat(String path) {
+        stats.accessed("stat", path, getParentPath(path));
+        try {
+            MetadataEntry entry = metadata.get(path);
+            if (entry == null) {
+                return new Reply(404, "Path not found");
+            }
+
+            // 9.2 Formating + returning the metadata
+            String response = String.format("Path: %s, Type: %s, Parent: %s, Timestamp: %d",
+                    entry.getPath(), entry.getType(),
+                    entry.getParent() != null ? entry.getParent() : "root",
+                    entry.getTimestamp());
+            System.out.println("[Server " + serverId + "] Stat: " + path);
+            return new Reply(200, response);
+        } catch (Exception e) {
+            return new Reply(500, "Error: " + e.getMessage());
+        }
+    }
+
+    // 9.3 Stat narrowed down to some attributes, one "name=value" line each in the order asked for;
+    // a client that only wants the size does not get the block list
+    Reply stat(String path, List<String> fields) {
+        stats.accessed("stat", path, getParentPath(path));
+        MetadataEntry entry = metadata.get(path);
+        if (entry == null) {
+            return new Reply(404, "Path not found");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String field : fields) {
+            sb.append(field).append('=');
+            switch (field) {
+                case "path":        sb.append(entry.getPath()); break;
+                case "type":        sb.append(entry.getType()); break;
+                case "parent":      sb.append(entry.getParent() != null ? entry.getParent() : "root"); break;
+                case "ctime":       sb.append(entry.getTimestamp()); break;
+                case "size":        sb.append(entry.getSize()); break;
+                case "mtime":       sb.append(entry.getMtime()); break;
+                case "atime":       sb.append(entry.getAtime()); break;
+                case "mode":        sb.append(String.format("%04o", entry.getMode())); break;
+                case "replication": sb.append(entry.getReplication()); break;
+                case "blocks":      sb.append(BlockList.format(entry.getBlocks())); break;
+            }
+            sb.append('\n');
+        }
+        System.out.println("[Server " + serverId + "] Stat: " + path + " " + fields);
+        return new Reply(200, sb.toString());
+    }
+
+    // 9.4 Handling an attribute update: POST /setattr?path=<p>&size=&mtime=&atime=&mode=&replication=&blocks=,
+    // only the attributes given change. Mode is octal, times are ms since the epoch, blocks as in BlockList.
+    // A new size or block list sets mtime to now unless mtime is given too. atime only changes here:
+    // reads stay reads, like HDFS leaving atime to the client
+    private void handleSetattr(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        String path = getQueryParam(query, "path");
+        if (path == null || path.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
+            return;
+        }
+        if (isMisdirected(exchange, path)) {
+            sendResponse(exchange, 421, "Wrong shard for path: " + path);
+            return;
+        }
+
+        // 9.4.1 Parsing everything before touching the entry, a bad value changes nothing
+        Long size, mtime, atime;
+        Integer mode, replication;
+        long[] blocks;
+        try {
+            size = parseAttr(query, "size", 10, 0, Long.MAX_VALUE);
+            mtime = parseAttr(query, "mtime", 10, 0, Long.MAX_VALUE);
+            atime = parseAttr(query, "atime", 10, 0, Long.MAX_VALUE);
+            Long m = parseAttr(query, "mode", 8, 0, 07777);
+            Long r = parseAttr(query, "replication", 10, 1, BlockList.MAX_LOCATIONS);
+            mode = m == null ? null : m.intValue();
+            replication = r == null ? null : r.intValue();
+            String blockText = getQueryParam(query, "blocks");
+            blocks = blockText == null ? null : BlockList.parse(blockText, MAX_BLOCKS);
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, e.getMessage());
+            return;
+        }
+
+        stats.accessed("setattr", path, getParentPath(path));
+        List<String> leased = List.of(path); // only the stat of the path changes, not its parent's listing
+        try {
+            awaitLeases(exchange.getRequestHeaders().getFirst(CLIENT_HEADER), leased);
+
+            Reply reply = underEpoch(requestEpoch(exchange), () -> {
+                MetadataEntry entry = metadata.get(path);
+                if (entry == null) {
+                    return new Reply(404, "Path not found");
+                }
+                if ("dir".equals(entry.getType()) && (size != null || replication != null || blocks != null)) {
+                    return new Reply(400, "Directories have no size, replication or blocks");
+                }
+
+                // 9.4.2 Entries are immutable (checkpoints rely on it), so the update is a new entry
+                long now = System.currentTimeMillis();
+                boolean written = size != null || blocks != null;
+                MetadataEntry updated = new MetadataEntry(path, entry.getType(), entry.getParent(), entry.getTimestamp(),
+                        size != null ? size : entry.getSize(),
+                        mtime != null ? mtime : written ? now : entry.getMtime(),
+                        atime != null ? atime : entry.getAtime(),
+                        mode != null ? mode : entry.getMode(),
+                        replication != null ? replication : entry.getReplication(),
+                        blocks != null ? blocks : entry.getBlocks());
+                if (!replaceEntry(entry, updated)) {
+                    return new Reply(409, "Path changed concurrently");
+                }
+                System.out.println("[Server " + serverId + "] Set attributes of " + path);
+                return new Reply(200, "Attributes updated: " + path);
+            });
+            sendResponse(exchange, reply.getStatus(), reply.getBody());
+        } catch (Exception e) {
+            sendResponse(exchange, 500, "Error: " + e.getMessage());
+        } finally {
+            leases.release(leased);
+        }
+    }
+
+    // 10. Handling the removal of a file or directory
+    private void handleRm(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        String path = getQueryParam(query, "path");
+
+        if (path == null || path.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
+            return;
+        }
+        if (isMisdirected(exchange, path)) {
+            sendResponse(exchange, 421, "Wrong shard for path: " + path);
+            return;
+        }
+
+        Reply reply = rm(path, exchange.getRequestHeaders().getFirst(CLIENT_HEADER), requestEpoch(exchange));
+        sendResponse(exchange, reply.getStatus(), reply.getBody());
+    }
+
+    // 10.1 Removing a file or an empty directory
+    Reply rm(String path, String clientId, long requestEpoch) {
+        stats.accessed("rm", path, getParentPath(path));
+        List<String> leased = leasedPathsAffectedBy(path);
+        try {
+            awaitLeases(clientId, leased);
+
+            return underEpoch(requestEpoch, () -> {
+                MetadataEntry entry = metadata.get(path);
+                if (entry == null) {
+                    return new Reply(404, "Path not found");
+                }
+
+                // 10.2 Check if directory is empty (only for directories), from the per-directory counters
+                // in the same step as the removal, see removeEntry
+                // 10.3 Remove the entry, logged and synced before the reply
+                if (!removeEntry(path, "dir".equals(entry.getType()))) {
+                    return metadata.containsKey(path) ? new Reply(400, "Directory not empty") : new Reply(404, "Path not found");
+                }
+                System.out.println("[Server " + serverId + "] Removed: " + path);
+                return new Reply(200, "Removed: " + path);
+            });
+        } catch (Exception e) {
+            return new Reply(500, "Error: " + e.getMessage());
+        } finally {
+            leases.release(leased);
+        }
+    }
+
+    // 10.4 Handling a rename: the router keeps the entry's key (its inode key) and only changes its parent,
+    // so this is a single entry update no matter how many descendants a directory has
+    private void handleRename(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        String path = getQueryParam(query, "path");
+        String newParent = getQueryParam(query, "parent");
+
+        if (path == null || path.isEmpty() || newParent == null || newParent.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' or 'parent' parameter");
+            return;
+        }
+        if (isMisdirected(exchange, path)) {
+            sendResponse(exchange, 421, "Wrong shard for path: " + path);
+            return;
+        }
+
+        // 10.5 Listings of the old and the new parent change, and so does the entry's own stat
+        List<String> leased = new ArrayList<>(leasedPathsAffectedBy(path));
+        leased.add(newParent);
+        try {
+            awaitLeases(exchange.getRequestHeaders().getFirst(CLIENT_HEADER), leased);
+
+            // 10.5.1 Checked against the epoch and the "rm -r" fences like every other change: neither the
+            // entry nor its new parent may be in a subtree that is being removed
+            Reply reply = underEpoch(requestEpoch(exchange), () -> {
+                MetadataEntry entry = metadata.get(path);
+                if (entry == null) {
+                    return new Reply(404, "Path not found");
+                }
+                if (fenced(path) || fenced(newParent)) {
+                    return new Reply(404, "Parent directory is being removed");
+                }
+                if (!replaceEntry(entry, entry.withParent(newParent))) {
+                    return new Reply(409, "Path changed concurrently");
+                }
+                System.out.println("[Server " + serverId + "] Moved " + path + " under " + newParent);
+                return new Reply(200, "Moved: " + path);
+            });
+            sendResponse(exchange, reply.getStatus(), reply.getBody());
+        } catch (Exception e) {
+            sendResponse(exchange, 500, "Error: " + e.getMessage());
+        } finally {
+            leases.release(leased);
+        }
+    }
+
+    // 10.6 Handling this shard's part of "mkdir -p": the router sends every missing directory of the chain
+    // that lives here (one key per line); all of them are created as one step. The answer lists the ones
+    // that were new, so the router can take them back if another shard fails. check=true only checks,
+    // the router asks every shard that before creating anything
+    private void handleMkdirs(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        List<String> paths = readBodyLines(exchange);
+        if (paths.isEmpty()) {
+            sendResponse(exchange, 400, "Missing paths in request body");
+            return;
+        }
+        if ("true".equals(getQueryParam(exchange.getRequestURI().getQuery(), "check"))) {
+            Reply reply = underEpoch(requestEpoch(exchange), () -> checkMkdirs(paths));
+            sendResponse(exchange, reply.getStatus(), reply.getBody());
+            return;
+        }
+
+        List<String> leased = new ArrayList<>();
+        for (String path : paths) {
+            leased.addAll(leasedPathsAffectedBy(path));
+        }
+        try {
+            awaitLeases(exchange.getRequestHeaders().getFirst(CLIENT_HEADER), leased);
+
+            Reply reply = underEpoch(requestEpoch(exchange), () -> {
+                // 10.7 Checking the whole batch first, a file in the way fails it before anything is created
+                Reply checked = checkMkdirs(paths);
+                if (checked.getStatus() != 200) {
+                    return checked;
+                }
+
+                // 10.8 Creating the missing directories as one batch, a checkpoint sees all of it or none
+                List<String> created = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                Lock batch = checkpointer.mutationLock();
+                batch.lock();
+                try {
+                    for (String path : paths) {
+                        if (createEntry(new MetadataEntry(path, "dir", getParentPath(path), now))) {
+                            created.add(path);
+                        }
+                    }
+                } finally {
+                    batch.unlock();
+                }
+                checkpointer.sync();
+                System.out.println("[Server " + serverId + "] Created " + created.size() + " directories in one batch");
+                StringBuilder sb = new StringBuilder("Created: " + created.size() + "\n");
+                created.forEach(path -> sb.append(path).append("\n"));
+                return new Reply(200, sb.toString());
+            });
+            sendResponse(exchange, reply.getStatus(), reply.getBody());
+        } catch (Exception e) {
+            sendResponse(exchange, 500, "Error: " + e.getMessage());
+        } finally {
+            leases.release(leased);
+        }
+    }
+
+    // Helper method: a batch of "mkdir -p" fails if a file is in the way or the chain is being removed
+    private Reply checkMkdirs(List<String> paths) {
+        for (String path : paths) {
+            MetadataEntry existing = metadata.get(path);
+            if (existing != null && !"dir".equals(existing.getType())) {
+                return new Reply(409, "Path exists and is not a directory: " + path);
+            }
+            if (existing == null && fenced(path)) {
+                return new Reply(409, "Parent directory is being removed: " + path);
+            }
+        }
+        return new Reply(200, "Checked: " + paths.size());
+    }
+
+    // 10.9 Handling this shard's part of "rm -r": the body is the subtree's scope in inode keys
+    // ("+prefix" inside, "-prefix" moved out by a rename, longest match wins); every entry of this
+    // shard in scope is removed as one step. until=<epoch> fences the scope first: creates in it are
+    // refused until the router pushes that epoch, which it does once every shard is done, so a create
+    // whose parent check came before the removal cannot leave an orphan behind
+    private void handleRmTree(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        List<String> lines = readBodyLines(exchange);
+        if (lines.isEmpty()) {
+            sendResponse(exchange, 400, "Missing scope in request body");
+            return;
+        }
+        Map<String, Boolean> scope = PathResolver.scopeIndex(lines);
+        String until = getQueryParam(exchange.getRequestURI().getQuery(), "until");
+        if (until != null) {
+            Lock lock = epochLock.writeLock(); // creates checked against the fences are done, the next ones see it
+            lock.lock();
+            try {
+                long liftedAt = Long.parseLong(until);
+                if (liftedAt > epoch) {
+                    fences.put(liftedAt, scope);
+                }
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Invalid 'until' parameter");
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<String> doomed = new ArrayList<>();
+        for (String path : metadata.keySet()) {
+            if (PathResolver.inScope(path, scope)) {
+                doomed.add(path);
+            }
+        }
+
+        List<String> leased = new ArrayList<>();
+        for (String path : doomed) {
+            leased.addAll(leasedPathsAffectedBy(path));
+        }
+        try {
+            awaitLeases(exchange.getRequestHeaders().getFirst(CLIENT_HEADER), leased);
+
+            int removed = 0;
+            Lock batch = checkpointer.mutationLock();
+            batch.lock();
+            try {
+                for (String path : doomed) {
+                    if (removeEntry(path, false)) {
+                        removed++;
+                    }
+                }
+            } finally {
+                batch.unlock();
+            }
+            checkpointer.sync();
+            System.out.println("[Server " + serverId + "] Removed " + removed + " entries in one batch");
+            sendResponse(exchange, 200, "Removed: " + removed);
+        } catch (Exception e) {
+            sendResponse(exchange, 500, "Error: " + e.getMessage());
+        } finally {
+            leases.release(leased);
+        }
+    }
+
+    // 10.10 Binary protocol entry point: same operations, no leases or placement header
+    private Reply handleRpc(byte op, String path) {
+        if (path == null || path.isEmpty()) {
+            return new Reply(400, "Missing or invalid 'path' parameter");
+        }
+        switch (op) {
+            case RpcServer.OP_MKDIR:   return mkdir(path, null, ANY_EPOCH);
+            case RpcServer.OP_TOUCH:   return touch(path, null, ANY_EPOCH);
+            case RpcServer.OP_READDIR: return readdir(path);
+            case RpcServer.OP_STAT:    return stat(path);
+            case RpcServer.OP_RM:      return rm(path, null, ANY_EPOCH);
+            default:                   return new Reply(400, "Unknown operation: " + op);
+        }
+    }
+
+    // 11. Dumping all metadata stored on the server
+    private void handleDump(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("[Server ").append(serverId).append("]\n");
+
+            // 11.1 Getting all entries sorted by path for readble output
+            List<MetadataEntry> entries = new ArrayList<>(metadata.values());
+            entries.sort(Comparator.comparing(MetadataEntry::getPath));
+
+            // 11.2 Formating each entry
+            for (MetadataEntry entry : entries) {
+                sb.append(String.format("  %s -> {type=%s, parent=%s, ts=%d}\n",
+                        entry.getPath(),
+                        entry.getType(),
+                        entry.getParent() != null ? entry.getParent() : "root",
+                        entry.getTimestamp()));
+            }
+
+            if (entries.isEmpty()) {
+                sb.append("  (no entries)\n");
+            }
+
+            System.out.println("[Server " + serverId + "] Dump requested");
+            sendResponse(exchange, 200, sb.toString());
+        } catch (Exception e) {
+            sendResponse(exchange, 500, "Error: " + e.getMessage());
+        }
+    }
+
+    // 11.3 Watching for changes: GET /watch?path=<dir> streams changes of the directory's entries,
+    // recursive=true of everything below it; POST takes a scope (see PathResolver.subtreeScope) as
+    // the body instead, that is how the router watches subtrees containing renamed entries.
+    // since=<id> replays the changes after that id first.
+    private void handleWatch(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        String since = getQueryParam(query, "since");
+        if (since == null) {
+            since = exchange.getRequestHeaders().getFirst("Last-Event-ID"); // EventSource reconnecting
+        }
+        long sinceSeq;
+        try {
+            sinceSeq = since == null || since.isEmpty() ? -1 : Long.parseLong(since);
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "Invalid 'since' parameter");
+            return;
+        }
+
+        Predicate<WatchHub.Event> filter;
+        if ("POST".equals(exchange.getRequestMethod())) {
+            List<String> lines = readBodyLines(exchange);
+            if (lines.isEmpty()) {
+                sendResponse(exchange, 400, "Missing scope");
+                return;
+            }
+            Map<String, Boolean> scope = PathResolver.scopeIndex(lines);
+            filter = e -> PathResolver.inScope(e.path, scope);
+        } else if ("GET".equals(exchange.getRequestMethod())) {
+            String path = getQueryParam(query, "path");
+            if (path == null || path.isEmpty()) {
+                sendResponse(exchange, 400, "Missing or invalid 'path' parameter");
+                return;
+            }
+            filter = "true".equals(getQueryParam(query, "recursive"))
+                    ? e -> PathResolver.isUnder(e.path, path)
+                    : e -> path.equals(e.parent) || path.equals(e.path);
+        } else {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+        watches.watch(exchange, filter, sinceSeq);
+    }
+
+    // 11.4 Finding entries: GET /find?path=<dir> searches below dir, POST takes a scope (see
+    // PathResolver.subtreeScope) as the body instead, that is how the router searches subtrees with
+    // renamed entries. Predicates are in FindQuery. The map is scanned in parallel and only matches
+    // are sent back, one "<type> <size> <mtime> <path>" line each, in no particular order
+    private void handleFind(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        FindQuery find;
+        try {
+            find = FindQuery.parse(key -> getQueryParam(query, key));
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, e.getMessage());
+            return;
+        }
+
+        List<String> scope;
+        if ("POST".equals(exchange.getRequestMethod())) {
+            scope = readBodyLines(exchange);
+        } else if ("GET".equals(exchange.getRequestMethod())) {
+            String path = getQueryParam(query, "path");
+            scope = path == null || path.isEmpty() ? List.of() : List.of("+" + path);
+        } else {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+        if (scope.isEmpty()) {
+            sendResponse(exchange, 400, "Missing or invalid 'path' parameter or scope");
+            return;
+        }
+        String root = scope.get(0).substring(1);
+        stats.accessed("find", root, root);
+
+        // 11.4.1 Keys named in the scope are renamed entries (or the search root), whose names the router checks
+        Map<String, Boolean> index = PathResolver.scopeIndex(scope);
+
+        // 11.4.2 Streaming the matches while the map is scanned in parallel on the finders pool (its tasks
+        // fork into the pool they run in): the scan hands lines to the writer through a bounded queue, so
+        // the response is as large as the result, starts with the first match, and a slow reader holds the
+        // scan back instead of a growing buffer. Returning an entry ends the search early, once the limit
+        // is reached or the reader went away or stalled. A failed scan ends with "# error: ..." instead of
+        // the end of the stream, so a partial result is never taken for a complete one
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        BlockingQueue<String> lines = new ArrayBlockingQueue<>(FIND_QUEUE);
+        AtomicInteger found = new AtomicInteger();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        finders.execute(() -> {
+            try {
+                metadata.searchValues(FIND_BATCH, entry -> {
+                    if (cancelled.get()) {
+                        return entry;
+                    }
+                    if (!PathResolver.inScope(entry.getPath(), index)
+                            || !find.matches(entry, !index.containsKey(entry.getPath()))) {
+                        return null;
+                    }
+                    if (found.incrementAndGet() > find.limit()) {
+                        return entry;
+                    }
+                    String line = entry.getType() + " " + entry.getSize() + " " + entry.getMtime() + " " + entry.getPath() + "\n";
+                    return handOver(lines, line, cancelled) ? null : entry;
+                });
+                handOver(lines, "", cancelled); // end of the scan
+            } catch (RuntimeException | Error e) {
+                System.err.println("[Server " + serverId + "] Find below " + root + " failed: " + e);
+                handOver(lines, "# error: " + e + "\n", cancelled);
+            }
+        });
+
+        // 11.4.3 Writing what the scan finds; while it finds nothing an empty line every second keeps
+        // the connection from timing out (the router skips it)
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            while (true) {
+                String line = lines.poll(1, TimeUnit.SECONDS);
+                if (line == null) {
+                    out.write("\n");
+                    out.flush();
+                } else if (line.isEmpty()) {
+                    break;
+                } else if (line.startsWith("#")) {
+                    out.write(line); // the scan failed, nothing comes after
+                    break;
+                } else {
+                    out.write(line);
+                    if (lines.isEmpty()) {
+                        out.flush(); // caught up with the scan
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cancelled.set(true); // a reader that went away stops the scan
+        }
+        System.out.println("[Server " + serverId + "] Find below " + root + ": " + Math.min(found.get(), find.limit()) + " matches");
+    }
+
+    // Helper method: a scan task waiting for room in the writer's queue, false once the find is cancelled;
+    // a reader that takes nothing for FIND_STALL_MS cancels it, so it cannot hold the finders pool
+    private static boolean handOver(BlockingQueue<String> lines, String line, AtomicBoolean cancelled) {
+        long giveUpAt = System.currentTimeMillis() + FIND_STALL_MS;
+        try {
+            while (!lines.offer(line, 100, TimeUnit.MILLISECONDS)) {
+                if (cancelled.get()) {
+                    return false;
+                }
+                if (System.currentTimeMillis() > giveUpAt) {
+                    cancelled.set(true);
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // 11.5 Liveness probe: answers from memory, no lock and no disk, so it stays fast under load
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        sendResponse(exchange, 200, "ok " + serverId + " entries=" + metadata.size());
+    }
+
+    // 11.6 Bloom filter of this shard's keys: full filter, or only the bits flipped since a sequence number
+    private void handleBloom(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+
+        String since = getQueryParam(exchange.getRequestURI().getQuery(), "since");
+        if (since == null) {
+            sendResponse(exchange, 200, bloom.encode());
+            return;
+        }
+        String changes;
+        try {
+            changes = bloom.changesSince(Long.parseLong(since));
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "Invalid 'since' parameter");
+            return;
+        }
+        if (changes == null) {
+            sendResponse(exchange, 410, "Too far behind, fetch the full filter");
+            return;
+        }
+        sendResponse(exchange, 200, changes);
+    }
+
+    // 11.7 Placement epoch: the router pushes the new one (POST /epoch?epoch=n) whenever its rename table
+    // changes, from then on requests made with an older map are turned away; GET shows the current one.
+    // The body names inode key prefixes whose meaning changed (one per line): the answer waits until
+    // no client can still serve a cached answer for a key below them
+    private void handleEpoch(HttpExchange exchange) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            try {
+                raiseEpoch(Long.parseLong(getQueryParam(exchange.getRequestURI().getQuery(), "epoch")));
+                leases.revoke(readBodyLines(exchange));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Missing or invalid 'epoch' parameter");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendResponse(exchange, 503, "Interrupted while revoking leases");
+                return;
+            }
+        } else if (!"GET".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+        sendResponse(exchange, 200, "epoch " + epoch);
+    }
+
+    // Helper method: epochs only go forward, a late or repeated push changes nothing. Taking the write
+    // lock waits for requests checked against the old epoch, none of them lands after we return
+    private void raiseEpoch(long newEpoch) {
+        Lock lock = epochLock.writeLock();
+        lock.lock();
+        try {
+            if (newEpoch <= epoch) {
+                return;
+            }
+            epoch = newEpoch;
+            fences.keySet().removeIf(liftedAt -> liftedAt <= newEpoch);
+            Path file = Paths.get(EPOCH_FILE);
+            Path tmp = Paths.get(EPOCH_FILE + ".tmp");
+            Files.write(tmp, String.valueOf(newEpoch).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[Server " + serverId + "] Error saving placement epoch: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("[Server " + serverId + "] Placement epoch is now " + epoch);
+    }
+
+    // Helper method: running a request's read or change under the epoch read lock, 421 if the epoch it
+    // was made with is older than ours by now (the early check in isMisdirected may be before a push)
+    private Reply underEpoch(long requestEpoch, Supplier<Reply> action) {
+        Lock lock = epochLock.readLock();
+        lock.lock();
+        try {
+            if (requestEpoch < epoch) {
+                return new Reply(421, "Placement epoch changed, refresh and retry");
+            }
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Helper method: true if a path lies in a subtree an "rm -r" is removing
+    private boolean fenced(String path) {
+        for (Map<String, Boolean> scope : fences.values()) {
+            if (PathResolver.inScope(path, scope)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Helper method: the epoch a request was made with, ANY_EPOCH without the header
+    private long requestEpoch(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst(PLACEMENT_HEADER);
+        try {
+            return header == null ? ANY_EPOCH : Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1; // isMisdirected has turned it away already
+        }
+    }
+
+    private void loadEpoch() {
+        try {
+            Path file = Paths.get(EPOCH_FILE);
+            if (Files.exists(file)) {
+                epoch = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+            }
+        } catch (Exception e) {
+            System.out.println("[Server " + serverId + "] No placement epoch found or error loading: " + e.getMessage());
+        }
+    }
+
+    // Helper method: a request routed by a smart client carries the placement epoch it used;
+    // if that map is older than ours (a rename happened since) or the path belongs elsewhere, the
+    // client must refresh and retry. A newer epoch is a push still on its way and the request is served,
+    // but only the router's POST /epoch moves ours: a client's header is not trusted with the shard's epoch
+    private boolean isMisdirected(HttpExchange exchange, String path) {
+        String header = exchange.getRequestHeaders().getFirst(PLACEMENT_HEADER);
+        if (header == null) {
+            return false; // legacy client, accept as before
+        }
+        long requestEpoch;
+        try {
+            requestEpoch = Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        if (requestEpoch < epoch) {
+            return true;
+        }
+        return !isResponsibleForPath(path);
+    }
+
+    // Helper method: waiting for other clients' leases, which is not this request being slow
+    private void awaitLeases(String clientId, Collection<String> paths) throws InterruptedException {
+        long started = System.nanoTime();
+        try {
+            leases.await(clientId, paths);
+        } finally {
+            admission.waitedFor(System.nanoTime() - started);
+        }
+    }
+
+    // Helper method: a client asking for a lease gets one unless a write on the path is pending
+    private void grantLease(HttpExchange exchange, String path) {
+        if (getQueryParam(exchange.getRequestURI().getQuery(), "lease") == null) {
+            return;
+        }
+        long leaseMs = leases.grant(path, exchange.getRequestHeaders().getFirst(CLIENT_HEADER));
+        if (leaseMs > 0) {
+            exchange.getResponseHeaders().set(LEASE_HEADER, String.valueOf(leaseMs));
+        }
+    }
+
+    // Helper method: a write changes the stat of the path itself and the readdir of its parent; an
+    // existing entry's parent is the one it is stored under (a renamed entry's key names the old one),
+    // a new entry's is the parent of its key
+    private List<String> leasedPathsAffectedBy(String path) {
+        MetadataEntry entry = metadata.get(path);
+        String parent = entry != null ? entry.getParent() : getParentPath(path);
+        return parent == null ? List.of(path) : List.of(path, parent);
+    }
+
+    // Helper method: extracting parent path from a given path
+    // example: "/home/maria" -> "/home", "/home" -> "/", "/" -> null
+    private String getParentPath(String path) {
+        if (path.equals("/")) {
+            return null; // root has no parent
+        }
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == 0) {
+            return "/"; // parent is root
+        }
+        return lastSlash > 0 ? path.substring(0, lastSlash) : null;
+    }
+
+    // Helper method: an optional numeric attribute of /setattr, null when not given
+    private Long parseAttr(String query, String key, int radix, long min, long max) {
+        String value = getQueryParam(query, key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            long n = Long.parseLong(value, radix);
+            if (n >= min && n <= max) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid '" + key + "' parameter");
+    }
+
+    // Helper method: reading a request body of one value per line
+    private List<String> readBodyLines(HttpExchange exchange) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = exchange.getRequestBody()) {
+            for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    // Helper method: extracting query param from URL
+    private String getQueryParam(String query, String key) {
+        if (query == null) return null;
+        String[] params = query.split("&");
+        for (String param : params) {
+            String[] pair = param.split("=", 2);
+            if (pair.length == 2 && key.equals(pair[0])) {
+                try {
+                    return java.net.URLDecoder.decode(pair[1], StandardCharsets.UTF_8.name());
+                } catch (Exception e) {
+                    return pair[1];
+                }
+            }
+        }
+        return null;
+    }
+
+    // Helper method: sending HTTP response
+    private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.getResponseHeaders().set(BLOOM_SEQ_HEADER, String.valueOf(bloom.getSeq()));
+        long waitedMs = admission.waitedMs();
+        if (waitedMs > 0) {
+            exchange.getResponseHeaders().set(LEASE_WAIT_HEADER, String.valueOf(waitedMs));
+        }
+        byte[] bytes = response == null ? new byte[0] : response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    // Inner class: representing a single metadata entry. Attributes are primitives and the block
+    // list one packed long[], no boxed values: an entry is 64 bytes (compressed references) plus
+    // 16 bytes per block and 16 for the array once it has blocks, at most MAX_BLOCKS_PER_FILE of them,
+    // plus the path and parent strings
+    public static class MetadataEntry {
+        private final String path; // full path
+        private final String type; // "file" or "dir"
+        private final String parent; // parent directory path
+        private final long timestamp; // creation time
+        private final long size; // bytes, 0 for directories
+        private final long mtime; // last modification, set by setattr
+        private final long atime; // last access, set by setattr
+        private final short mode; // permission bits, 0755 for new directories and 0644 for new files
+        private final short replication; // copies of each block, 0 for directories
+        private final long[] blocks; // see BlockList, never modified once the entry exists
+
+        public MetadataEntry(String path, String type, String parent, long timestamp) {
+            this(path, type, parent, timestamp, 0, timestamp, timestamp,
+                    "dir".equals(type) ? DIR_MODE : FILE_MODE,
+                    "dir".equals(type) ? 0 : DEFAULT_REPLICATION, BlockList.EMPTY);
+        }
+
+        public MetadataEntry(String path, String type, String parent, long timestamp, long size,
+                             long mtime, long atime, int mode, int replication, long[] blocks) {
+            this.path = path;
+            this.type = type;
+            this.parent = parent;
+            this.timestamp = timestamp;
+            this.size = size;
+            this.mtime = mtime;
+            this.atime = atime;
+            this.mode = (short) mode;
+            this.replication = (short) replication;
+            this.blocks = blocks;
+        }
+
+        // the same entry under another parent, for renames
+        public MetadataEntry withParent(String newParent) {
+            return new MetadataEntry(path, type, newParent, timestamp, size, mtime, atime, mode, replication, blocks);
+        }
+
+        public String getPath() { return path; }
+        public String getType() { return type; }
+        public String getParent() { return parent; }
+        public long getTimestamp() { return timestamp; }
+        public long getSize() { return size; }
+        public long getMtime() { return mtime; }
+        public long getAtime() { return atime; }
+        public int getMode() { return mode; }
+        public int getReplication() { return replication; }
+        public long[] getBlocks() { return blocks; }
+    }
+
+    // 13. Stop the HTTP server
+    public void stop() {
+        leases.stop();
+        if (rpcServer != null) {
+            rpcServer.stop();
+        }
+        if (server != null) {
+            server.stop(0);
+            System.out.println("[Server " + serverId + "] HTTP server stopped");
+        }
+        admission.shutdown();
+        finders.shutdownNow();
+        watches.stop();
+        checkpointer.stop();
+    }
+}
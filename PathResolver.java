@@ -0,0 +1,283 @@
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Path resolution layer that makes rename O(1).
+// Every entry keeps the key it was created under (its "inode key"), which also decides its shard and
+// never changes. A rename only records "logical path -> inode key" for the renamed entry here and
+// updates the parent of that one entry on its server; everything below it resolves through the
+// longest renamed prefix, so a directory with a million descendants moves by a single update.
+public class PathResolver {
+    private static final int CACHE_SIZE = 10000; // resolved paths kept in the cache
+
+    private final Map<String, String> toInode = new HashMap<>(); // renamed logical path -> inode key
+    private final Map<String, String> toLogical = new HashMap<>(); // inode key -> logical path (reverse)
+    private long version; // bumped by every rename, also used to make fresh inode keys unique
+
+    // logical path -> inode key, access ordered so the eldest entry is the least recently used
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // 1. Resolving a logical path to the inode key it is stored under
+    public synchronized String resolve(String logical) {
+        String cached = cache.get(logical);
+        if (cached != null) {
+            return cached;
+        }
+        String inode = translate(logical, toInode);
+        cache.put(logical, inode);
+        return inode;
+    }
+
+    // 2. Translating an inode key back into the logical path clients see
+    public synchronized String toLogical(String inode) {
+        return translate(inode, toLogical);
+    }
+
+    // 3. Recording a rename, the caller has already checked that src exists and dst does not
+    public synchronized void rename(String src, String dst) {
+        String inode = translate(src, toInode);
+
+        // 3.1 Mappings for entries below src (renamed into it earlier) move along with it; whatever
+        // was mapped at or below dst belonged to entries that are gone, since dst does not exist
+        Map<String, String> moved = new HashMap<>();
+        Iterator<Map.Entry<String, String>> it = toInode.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> e = it.next();
+            if (isUnder(e.getKey(), src)) {
+                moved.put(dst + e.getKey().substring(src.length()), e.getValue());
+            } else if (!isUnder(e.getKey(), dst)) {
+                continue;
+            }
+            toLogical.remove(e.getValue());
+            it.remove();
+        }
+        moved.put(dst, inode);
+        for (Map.Entry<String, String> e : moved.entrySet()) {
+            toInode.put(e.getKey(), e.getValue());
+            toLogical.put(e.getValue(), e.getKey());
+        }
+        version++;
+
+        ownKey(src);
+        compact();
+        cache.clear();
+    }
+
+    // 3.1 Dropping the mappings of a removed subtree, so the table does not keep growing with
+    // renames of entries that no longer exist; false if there was nothing to drop
+    public synchronized boolean forget(String logical) {
+        List<String> dropped = new ArrayList<>();
+        for (String path : toInode.keySet()) {
+            if (isUnder(path, logical)) {
+                dropped.add(path);
+            }
+        }
+        if (dropped.isEmpty()) {
+            return false;
+        }
+        for (String path : dropped) {
+            toLogical.remove(toInode.remove(path));
+        }
+        version++;
+
+        // 3.2 A path below that would now resolve to a key renamed out of the subtree keeps a fresh one,
+        // parents first since their keys decide the children's
+        dropped.sort(Comparator.comparingInt(String::length));
+        ownKey(logical);
+        for (String path : dropped) {
+            ownKey(path);
+        }
+        compact();
+        cache.clear();
+        return true;
+    }
+
+    // Helper method: if a path would now resolve to an inode key owned by another logical path (e.g. the
+    // one just moved away from it), the path gets a fresh key, otherwise creating it again would collide
+    private void ownKey(String logical) {
+        String fallback = translate(logical, toInode);
+        String owner = toLogical.get(fallback);
+        if (owner != null && !owner.equals(logical)) {
+            String fresh = fallback + "#" + version;
+            toInode.put(logical, fresh);
+            toLogical.put(fresh, logical);
+        }
+    }
+
+    // Helper method: a mapping its parent's mapping already implies (e.g. after renaming an entry back)
+    // changes nothing, dropping it leaves every translation as it was
+    private void compact() {
+        Iterator<Map.Entry<String, String>> it = toInode.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> e = it.next();
+            String parent = parentOf(e.getKey());
+            if (parent == null) {
+                continue;
+            }
+            String parentKey = translate(parent, toInode);
+            String implied = (parentKey.equals("/") ? "" : parentKey) + e.getKey().substring(e.getKey().lastIndexOf('/'));
+            if (implied.equals(e.getValue())) {
+                toLogical.remove(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // 4. Restoring the table from the router's checkpoint
+    public synchronized void load(long savedVersion, Map<String, String> mappings) {
+        toInode.clear();
+        toLogical.clear();
+        for (Map.Entry<String, String> e : mappings.entrySet()) {
+            toInode.put(e.getKey(), e.getValue());
+            toLogical.put(e.getValue(), e.getKey());
+        }
+        version = savedVersion;
+        cache.clear();
+    }
+
+    // 4.1 A new version with the same table, for changes clients must not miss that are not renames (rm -r)
+    public synchronized long bump() {
+        return ++version;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // renamed logical path -> inode key, sorted for stable output
+    public synchronized SortedMap<String, String> mappings() {
+        return new TreeMap<>(toInode);
+    }
+
+    // 5. Rewriting a server's answer so it shows logical paths instead of inode keys
+    private static final Pattern STAT_BODY = Pattern.compile("^Path: (.*), Type: (\\w+), Parent: (.*), Timestamp: (\\d+)$");
+
+    public String toLogicalBody(String endpoint, String body) {
+        if (body == null) {
+            return null;
+        }
+        if ("/stat".equals(endpoint)) {
+            Matcher m = STAT_BODY.matcher(body);
+            if (!m.matches()) {
+                return toLogicalFields(body); // stat?fields=..., or an error message
+            }
+            String parent = "root".equals(m.group(3)) ? "root" : toLogical(m.group(3));
+            return "Path: " + toLogical(m.group(1)) + ", Type: " + m.group(2)
+                    + ", Parent: " + parent + ", Timestamp: " + m.group(4);
+        }
+        if ("/readdir".equals(endpoint)) {
+            if (!body.startsWith("/")) {
+                return body; // "(empty)" or an error message
+            }
+            List<String> children = new ArrayList<>();
+            for (String child : body.split("\n")) { // one per line, a name cannot hold a line break
+                children.add(toLogical(child));
+            }
+            Collections.sort(children);
+            return String.join("\n", children);
+        }
+        // mkdir/touch/rm answers end with the path, e.g. "Directory created: /home"
+        int colon = body.lastIndexOf(": /");
+        return colon < 0 ? body : body.substring(0, colon + 2) + toLogical(body.substring(colon + 2));
+    }
+
+    // 5.1 A stat narrowed down to some fields: "path=..." and "parent=..." lines hold inode keys
+    private String toLogicalFields(String body) {
+        if (!body.contains("=")) {
+            return body;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : body.split("\n")) {
+            if (line.startsWith("path=/") || line.startsWith("parent=/")) {
+                int eq = line.indexOf('=');
+                line = line.substring(0, eq + 1) + toLogical(line.substring(eq + 1));
+            }
+            sb.append(line).append("\n");
+        }
+        return sb.toString();
+    }
+
+    // 6. The subtree below a logical path, as inode key prefixes: "+prefix" is inside the subtree,
+    // "-prefix" was renamed out of it. Entries renamed into the subtree keep keys outside of it,
+    // and entries renamed out keep keys inside of it, so both lists are needed.
+    // Only mappings that matter for the subtree are listed, not the whole table.
+    public synchronized List<String> subtreeScope(String logical) {
+        List<String> inside = new ArrayList<>();
+        inside.add(translate(logical, toInode));
+        for (Map.Entry<String, String> e : toInode.entrySet()) {
+            if (isUnder(e.getKey(), logical) && !e.getKey().equals(logical)) {
+                inside.add(e.getValue());
+            }
+        }
+        List<String> scope = new ArrayList<>();
+        for (String prefix : inside) {
+            scope.add("+" + prefix);
+        }
+        for (Map.Entry<String, String> e : toInode.entrySet()) {
+            if (!isUnder(e.getKey(), logical) && underAny(e.getValue(), inside)) {
+                scope.add("-" + e.getValue());
+            }
+        }
+        return scope;
+    }
+
+    // Helper method: true if a key lies in any of the prefixes
+    private static boolean underAny(String key, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (isUnder(key, prefix)) return true;
+        }
+        return false;
+    }
+
+    // 6.1 Checking an inode key against a scope from subtreeScope, the longest matching prefix decides.
+    // The scope is indexed by prefix once (prefix -> inside), a check then looks up the key and its
+    // ancestors instead of going through every line
+    public static Map<String, Boolean> scopeIndex(List<String> scope) {
+        Map<String, Boolean> index = new HashMap<>();
+        for (String line : scope) {
+            index.putIfAbsent(line.substring(1), line.charAt(0) == '+'); // same prefix twice: the first line counts
+        }
+        return index;
+    }
+
+    public static boolean inScope(String key, Map<String, Boolean> scope) {
+        for (String prefix = key; prefix != null; prefix = parentOf(prefix)) {
+            Boolean inside = scope.get(prefix);
+            if (inside != null) {
+                return inside;
+            }
+        }
+        return false;
+    }
+
+    // Helper method: replacing the longest mapped prefix of a path
+    private static String translate(String path, Map<String, String> table) {
+        if (table.isEmpty()) {
+            return path;
+        }
+        for (String prefix = path; prefix != null; prefix = parentOf(prefix)) {
+            String mapped = table.get(prefix);
+            if (mapped != null) {
+                return mapped + path.substring(prefix.length());
+            }
+        }
+        return path;
+    }
+
+    // Helper method: true if path is prefix itself or lies below it
+    static boolean isUnder(String path, String prefix) {
+        return path.equals(prefix) || path.startsWith(prefix.equals("/") ? "/" : prefix + "/");
+    }
+
+    // Helper method: "/home/maria" -> "/home", "/home" -> "/", "/" -> null
+    private static String parentOf(String path) {
+        if (path.equals("/")) return null;
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash == 0 ? "/" : path.substring(0, lastSlash);
+    }
+}
@@ -0,0 +1,13 @@
+// Status code + body of a metadata operation, independent of the transport (http or binary rpc)
+public class Reply {
+    private final int status; // http style status code: 200, 404, 409, ...
+    private final String body; // same text the http endpoints return
+
+    public Reply(int status, String body) {
+        this.status = status;
+        this.body = body;
+    }
+
+    public int getStatus() { return status; }
+    public String getBody() { return body; }
+}
@@ -2,17 +2,35 @@ import com.sun.net.httpserver.*;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RouterGateway {
     private final List<String> backends; // list of backend servers which the router can forward requests to
     private final int port; // port which the router listens on
+    private RpcServer rpcServer; // binary protocol server, only when RPC_PORT is set
+    private final PathResolver resolver = new PathResolver(); // logical path -> inode key, changed by renames
+    private final Object renameLock = new Object(); // renames and recursive removals are applied one at a time
+    private final ExecutorService fanOut = Executors.newCachedThreadPool(); // requests sent to several backends at once
+    private final ShardFilters filters; // copies of the backends' bloom filters, answer misses without a round trip
+    private final SingleFlight<Reply> reads = new SingleFlight<>(); // identical reads in flight share one backend call
+    private final AdmissionController admission = new AdmissionController("router", true); // bounded workers and limits
+    private final BackendHealth health; // probes, circuit breakers and adaptive timeouts per backend
+    private final WatchProxy watches; // client watch streams, each fed by every backend
+
+    // File where the rename table is persisted, it is part of the namespace and must survive restarts
+    private static final String RENAME_FILE = "/data/renames.txt";
 
     // 1. Constructor
     public RouterGateway(List<String> backends, int port) {
         this.backends = backends;
         this.port = port;
+        this.filters = new ShardFilters(backends);
+        this.health = new BackendHealth(backends);
+        this.watches = new WatchProxy(backends, resolver);
+        loadRenames();
     }
 
     // 2. Main function (always called first in java)
@@ -35,25 +53,45 @@ public class RouterGateway {
     // 3. Start connection
     public void start() throws Exception {
         // 3.1 Creating a http server which listens on a specific port:
-        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), AdmissionController.BACKLOG);
 
-        // 3.2 Registering API endpoints with their handlers
+        // 3.2 Registering API endpoints with their handlers, client requests go through admission control
         // use parent-based routing for consistency
-        http.createContext("/mkdir",   ex -> forward(ex, true));
-        http.createContext("/touch",   ex -> forward(ex, true));
-        http.createContext("/rm",      ex -> forward(ex, true));
-        http.createContext("/readdir", ex -> forward(ex, false));
-        http.createContext("/stat",    ex -> forward(ex, false));
-        http.createContext("/tree",    this::handleTree);
-        http.createContext("/fulltree",this::handleFullTree);
-        http.createContext("/chkdist", this::chkdist); // shows cluster distribution
-        http.createContext("/cluster", this::clusterStatus); // show cluster health
-        http.createContext("/health",  x -> ok(x, "ok")); // checks health
-
-        // 3.3 Using a thread pool to handle concurrent requests
-        http.setExecutor(Executors.newCachedThreadPool());
+        http.createContext("/mkdir",   admission.admit("mkdir", this::handleMkdir)); // mkdir?parents=true creates missing parents
+        http.createContext("/touch",   admission.admit("touch", ex -> forward(ex, true)));
+        http.createContext("/rm",      admission.admit("rm", this::handleRm)); // rm?recursive=true removes a whole subtree
+        http.createContext("/rename",  admission.admit("rename", this::handleRename)); // rename/move a file or directory
+        http.createContext("/readdir", admission.admit("readdir", ex -> forward(ex, false)));
+        http.createContext("/stat",    admission.admit("stat", ex -> forward(ex, false, "fields"))); // stat?fields=size,mtime for some attributes
+        http.createContext("/setattr", admission.admit("setattr", ex -> forward(ex, true,
+                "size", "mtime", "atime", "mode", "replication", "blocks"))); // change file attributes
+        http.createContext("/find",    admission.admit("find", this::handleFind)); // entries below a path matching predicates
+        http.createContext("/tree",    admission.admit("tree", this::handleTree));
+        http.createContext("/fulltree",admission.admit("tree", this::handleFullTree));
+        http.createContext("/chkdist", admission.admit("chkdist", this::chkdist)); // shows cluster distribution
+        http.createContext("/stats",   admission.shed(this::handleStats)); // cluster-wide counters, skew and hot keys
+        http.createContext("/watch",   admission.shed(this::handleWatch)); // stream of changes below a path, long-lived
+        http.createContext("/cluster", admission.shed(this::clusterStatus)); // show cluster health
+        http.createContext("/health",  admission.shed(x -> ok(x, "ok"))); // checks health
+        http.createContext("/placement", admission.shed(this::handlePlacement)); // placement map for smart clients
+        http.createContext("/bloom",   admission.shed(this::handleBloom)); // filter updates pushed by servers, GET shows filter stats
+        http.createContext("/coalescing", admission.shed(this::handleCoalescing)); // how many reads shared a backend call
+        http.createContext("/admission", admission.shed(ex -> ok(ex, admission.stats()))); // limits and rejections
+
+        // 3.3 Using a bounded thread pool to handle concurrent requests, what does not fit is rejected right away
+        http.setExecutor(admission.executor());
         System.out.println("[Router] listening on port " + port + " -> " + backends);
         http.start();
+        filters.start();
+        health.start();
+        fanOut.execute(() -> pushEpoch("")); // servers that missed the last push catch up
+    }
+
+    // 3.4 Optional binary protocol, forwarding works the same as for the http endpoints
+    public void startRpc(int rpcPort) throws IOException {
+        rpcServer = new RpcServer(rpcPort, admission.admit(this::handleRpc), admission.workers());
+        rpcServer.start();
+        System.out.println("[Router] rpc listening on port " + rpcPort);
     }
 
     // 4. Helper method: normalising a path by ensuring that it starts with / + does not end with /
@@ -87,13 +125,49 @@ public class RouterGateway {
     }
 
     // 7. Forwarding: forwards a http request to the appropriate backend server
-    private void forward(HttpExchange ex, boolean isWrite) throws IOException {
-        // 7.1 Extracting the path parameter from the query string
+    private void forward(HttpExchange ex, boolean isWrite, String... passOn) throws IOException {
+        // 7.1 Extracting the path parameter from the query string, and the ones the backend needs too
         String path = getQueryParam(ex, "path");
+        StringBuilder params = new StringBuilder();
+        for (String name : passOn) {
+            String value = getQueryParam(ex, name);
+            if (value != null) {
+                params.append('&').append(name).append('=').append(URLEncoder.encode(value, "UTF-8"));
+            }
+        }
+
+        Reply reply = route(ex.getRequestURI().getPath(), ex.getRequestMethod(), isWrite, path, params.toString());
+        sendResponse(ex, reply.getStatus(), reply.getBody());
+    }
+
+    // 7.2 Binary protocol requests take the same route as the http ones
+    private Reply handleRpc(byte op, String path) {
+        String endpoint = RpcServer.endpointFor(op);
+        if (endpoint == null) {
+            return new Reply(400, "Unknown operation: " + op);
+        }
+        boolean isWrite = RpcServer.isWrite(op);
+        try {
+            return route(endpoint, isWrite ? "POST" : "GET", isWrite, path, "");
+        } catch (IOException e) {
+            return new Reply(500, "Error: " + e.getMessage());
+        }
+    }
+
+    // 7.3 Routing one operation to its backend, shared by the http and binary endpoints; a rename
+    // between resolving the path and the backend's epoch check gets 421, resolving again picks up the new table
+    private Reply route(String endpoint, String method, boolean isWrite, String path, String params) throws IOException {
+        Reply reply = routeOnce(endpoint, method, isWrite, path, params);
+        return reply.getStatus() == 421 ? routeOnce(endpoint, method, isWrite, path, params) : reply;
+    }
 
-        // 7.2 Choosing which backend server to forward this request to
+    private Reply routeOnce(String endpoint, String method, boolean isWrite, String path, String params) throws IOException {
+        // 7.4 Choosing which backend server to forward this request to, by the entry's inode key; the
+        // epoch is read first, so it is never newer than the table the path is resolved with
         String normalizedPath = normalize(path);
-        String backend = isWrite ? pickBackendForWrite(normalizedPath) : pickBackendForRead(normalizedPath);
+        long epoch = placementEpoch();
+        String inode = resolver.resolve(normalizedPath);
+        String backend = isWrite ? pickBackendForWrite(inode) : pickBackendForRead(inode);
         System.out.println("[Router] " + (isWrite ? "WRITE" : "READ") + " path='" + normalizedPath + "' -> " + backend);
 
         if (isWrite) {
@@ -101,35 +175,235 @@ public class RouterGateway {
             if (parentPath != null && !normalizedPath.equals("/")) {
                 System.out.println("[Router] Checking parent existence: '" + parentPath + "'");
                 if (!checkPathExists(parentPath)) {
-                    sendResponse(ex, 404, "Parent directory '" + parentPath + "' does not exist on any server");
-                    return;
+                    return new Reply(404, "Parent directory '" + parentPath + "' does not exist on any server");
                 }
             }else{
                 System.out.println("[Router] Skipping parent check for: '" + normalizedPath + "' (parent: " + parentPath + ")");
             }
         }
 
-        // 7.3 Constructing the target URL: backend + original path + query parameters
-        String targetUrl = backend + ex.getRequestURI().getPath() + "?path=" +
-                URLEncoder.encode(normalizedPath, "UTF-8");
+        // 7.4.1 A read the owning backend's bloom filter rules out is answered here
+        if (!isWrite && filters.definitelyAbsent(backend, inode)) {
+            System.out.println("[Router] Bloom filter miss for '" + normalizedPath + "', answering 404 locally");
+            return new Reply(404, "Path not found");
+        }
+
+        // 7.5 Constructing the target URL: backend + original path + query parameters
+        String targetUrl = backend + endpoint + "?path=" +
+                URLEncoder.encode(inode, "UTF-8") + params;
 
         try {
-            // 7.4 Making the http call to the backend server
-            String response = httpCall(targetUrl, ex.getRequestMethod());
-            sendResponse(ex, 200, response);
+            // 7.6 Making the http call to the backend server, passing its status code through;
+            // a read joins an identical one already in flight instead of sending its own. Only
+            // single-entry reads get the quick timeout, a listing takes time in proportion to the directory
+            boolean quick = "GET".equals(method) && !"/readdir".equals(endpoint);
+            Reply reply = isWrite ? httpRequest(targetUrl, method, null, quick, epoch)
+                    : reads.run(epoch + " " + method + " " + targetUrl, () -> httpRequest(targetUrl, method, null, quick, epoch));
+            if (isWrite && reply.getStatus() == 200 && !"/rm".equals(endpoint)) {
+                filters.created(backend, inode); // readable at once, even before the filter update arrives
+            }
+            if (isWrite && reply.getStatus() == 200 && "/rm".equals(endpoint)) {
+                forgetRenames(normalizedPath);
+            }
+            return new Reply(reply.getStatus(), resolver.toLogicalBody(endpoint, reply.getBody()));
         } catch (IOException e) {
-            // 7.5 Handling backend server failures
+            // 7.7 Handling backend server failures
             System.err.println("[Router] Backend error for " + backend + ": " + e.getMessage());
-            sendResponse(ex, 503, "Backend unavailable: " + backend);
+            return new Reply(503, "Backend unavailable: " + backend);
+        }
+    }
+
+    // 7.8 mkdir: plain mkdir is forwarded, "mkdir -p" is coordinated here
+    private void handleMkdir(HttpExchange ex) throws IOException {
+        if ("true".equals(getQueryParam(ex, "parents"))) {
+            mkdirParents(ex);
+        } else {
+            forward(ex, true);
+        }
+    }
+
+    // 7.9 rm: plain rm is forwarded, "rm -r" is coordinated here
+    private void handleRm(HttpExchange ex) throws IOException {
+        if ("true".equals(getQueryParam(ex, "recursive"))) {
+            rmRecursive(ex);
+        } else {
+            forward(ex, true);
         }
     }
 
+    // 7.10 Creating a directory and all missing parents: the chain is split by shard and every shard
+    // gets its part as one batch, all shards at the same time. Every shard checks its part before any
+    // creates anything, and if one still fails the directories the others created are removed again
+    private void mkdirParents(HttpExchange ex) throws IOException {
+        if (!"POST".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 405, "Method not allowed");
+            return;
+        }
+        String path = normalize(getQueryParam(ex, "path"));
+        if (path.equals("/")) {
+            sendResponse(ex, 200, "Directory exists: /");
+            return;
+        }
+
+        // 7.10.1 Every directory of the chain below the root, grouped by the shard owning its inode key
+        Map<String, StringBuilder> batches = new LinkedHashMap<>();
+        List<String> chain = new ArrayList<>();
+        for (String p = path; p != null && !p.equals("/"); p = getParentPath(p)) {
+            chain.add(0, p);
+        }
+        Map<String, String> owners = new LinkedHashMap<>(); // inode key -> backend
+        long epoch = placementEpoch(); // a rename meanwhile makes the backends refuse the batches (421)
+        for (String p : chain) {
+            String inode = resolver.resolve(p);
+            String backend = pickBackendForWrite(inode);
+            owners.put(inode, backend);
+            batches.computeIfAbsent(backend, b -> new StringBuilder()).append(inode).append("\n");
+        }
+
+        // 7.10.2 Checking every batch first: a file in the way on one shard fails the whole chain
+        Map<String, Reply> checks = callBackends(batches.keySet(), backend ->
+                httpRequest(backend + "/mkdirs?check=true", "POST", batches.get(backend).toString(), false, epoch));
+        for (Reply reply : checks.values()) {
+            if (reply.getStatus() != 200) {
+                sendResponse(ex, reply.getStatus(), resolver.toLogicalBody("/mkdir", reply.getBody()));
+                return;
+            }
+        }
+
+        // 7.10.3 Sending the batches in parallel, each answer lists the directories that were new
+        Map<String, Reply> replies = callBackends(batches.keySet(), backend ->
+                httpRequest(backend + "/mkdirs", "POST", batches.get(backend).toString(), false, epoch));
+
+        Reply failed = null;
+        List<String[]> created = new ArrayList<>(); // {backend, inode key}
+        for (Map.Entry<String, Reply> e : replies.entrySet()) {
+            Reply reply = e.getValue();
+            if (reply.getStatus() != 200) {
+                failed = reply;
+                continue;
+            }
+            String[] lines = reply.getBody().split("\n");
+            for (int i = 1; i < lines.length; i++) {
+                created.add(new String[] { e.getKey(), lines[i] });
+            }
+        }
+        if (failed != null) {
+            undoMkdirs(created);
+            sendResponse(ex, failed.getStatus(), resolver.toLogicalBody("/mkdir", failed.getBody()));
+            return;
+        }
+        owners.forEach((inode, backend) -> filters.created(backend, inode));
+        System.out.println("[Router] mkdir -p '" + path + "' created " + created.size() + " directories");
+        sendResponse(ex, 200, "Directory created: " + path + " (" + created.size() + " new)");
+    }
+
+    // 7.10.4 Taking back what a failed "mkdir -p" created, deepest first; a directory something was
+    // created in meanwhile is not empty and stays
+    private void undoMkdirs(List<String[]> created) {
+        created.sort((a, b) -> b[1].length() - a[1].length());
+        for (String[] dir : created) {
+            try {
+                httpRequest(dir[0] + "/rm?path=" + URLEncoder.encode(dir[1], "UTF-8"), "POST");
+            } catch (IOException e) {
+                System.err.println("[Router] Could not undo mkdir of '" + dir[1] + "' on " + dir[0] + ": " + e.getMessage());
+            }
+        }
+        System.out.println("[Router] mkdir -p failed, took back " + created.size() + " directories");
+    }
+
+    // 7.11 Removing a whole subtree: every shard removes its entries in scope as one batch, in parallel
+    private void rmRecursive(HttpExchange ex) throws IOException {
+        if (!"POST".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 405, "Method not allowed");
+            return;
+        }
+        String path = normalize(getQueryParam(ex, "path"));
+        if (path.equals("/")) {
+            sendResponse(ex, 400, "Refusing to remove the root directory");
+            return;
+        }
+
+        synchronized (renameLock) { // a rename in the middle would change the scope under us
+            try {
+                if (httpRequest(statUrl(resolver.resolve(path)), "GET").getStatus() != 200) {
+                    sendResponse(ex, 404, "Path not found");
+                    return;
+                }
+            } catch (IOException e) {
+                sendResponse(ex, 503, "Backend unavailable: " + e.getMessage());
+                return;
+            }
+
+            // 7.11.1 Entries of the subtree can be on any shard, so every backend gets the scope; each fences
+            // it against creates until the next epoch, which is pushed once all of them are done
+            String scope = String.join("\n", resolver.subtreeScope(path));
+            long until = placementEpoch() + 1;
+            Map<String, Reply> replies = callBackends(backends, backend ->
+                    httpRequest(backend + "/rmtree?until=" + until, "POST", scope));
+
+            int removed = 0;
+            StringBuilder failed = new StringBuilder();
+            for (Map.Entry<String, Reply> e : replies.entrySet()) {
+                Reply reply = e.getValue();
+                if (reply.getStatus() == 200) {
+                    removed += Integer.parseInt(reply.getBody().substring("Removed: ".length()).trim());
+                } else {
+                    failed.append(" ").append(e.getKey());
+                }
+            }
+            // 7.11.2 Creates resolved before the removal carry an older epoch and are sent back (421)
+            // to check the parent again, so the fences can be lifted
+            if (failed.length() > 0 || !resolver.forget(path)) { // entries left on a failed shard keep their renames
+                resolver.bump();
+            }
+            saveRenames();
+            pushEpoch("");
+            if (failed.length() > 0) {
+                sendResponse(ex, 503, "Removed " + removed + " entries, failed on:" + failed);
+                return;
+            }
+            System.out.println("[Router] rm -r '" + path + "' removed " + removed + " entries");
+            sendResponse(ex, 200, "Removed: " + path + " (" + removed + " entries)");
+        }
+    }
+
+    // Helper method: calling several backends at the same time and collecting every reply,
+    // a backend that cannot be reached answers 503
+    private Map<String, Reply> callBackends(Collection<String> targets, BackendCall call) {
+        Map<String, Future<Reply>> futures = new LinkedHashMap<>();
+        for (String backend : targets) {
+            futures.put(backend, fanOut.submit(() -> call.apply(backend)));
+        }
+
+        Map<String, Reply> replies = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<Reply>> e : futures.entrySet()) {
+            try {
+                replies.put(e.getKey(), e.getValue().get());
+            } catch (Exception err) {
+                Throwable cause = err instanceof ExecutionException ? err.getCause() : err;
+                System.err.println("[Router] Backend error for " + e.getKey() + ": " + cause.getMessage());
+                replies.put(e.getKey(), new Reply(503, "Backend unavailable: " + e.getKey()));
+            }
+        }
+        return replies;
+    }
+
+    // One request to one backend, used with callBackends
+    private interface BackendCall {
+        Reply apply(String backend) throws IOException;
+    }
+
     // 8. Helper method: check if a path exists by querying the appropriate server
     private boolean checkPathExists(String path) {
-        String normalizedPath = normalize(path);
+        String normalizedPath = resolver.resolve(normalize(path));
 
-        // Check ALL backend servers for the parent
+        // Check ALL backend servers for the parent, except those whose bloom filter rules it out; the
+        // owner is always asked, a create there past the router may not be in our copy yet
+        String owner = pickBackendForRead(normalizedPath);
         for (String backend : backends) {
+            if (!backend.equals(owner) && filters.definitelyAbsent(backend, normalizedPath)) {
+                continue;
+            }
             try {
                 String targetUrl = backend + "/stat?path=" + URLEncoder.encode(normalizedPath, "UTF-8");
                 if (isPathExistsOnServer(targetUrl)) {
@@ -147,18 +421,8 @@ public class RouterGateway {
     }
 
     private boolean isPathExistsOnServer(String url) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setConnectTimeout(3000);
-        conn.setReadTimeout(5000);
-
-        try {
-            int responseCode = conn.getResponseCode();
-            // Path exists if we get 200 OK, doesn't exist if we get 404
-            return responseCode == 200;
-        } finally {
-            conn.disconnect();
-        }
+        // Path exists if we get 200 OK, doesn't exist if we get 404
+        return httpRequest(url, "GET").getStatus() == 200;
     }
 
     // 9. Helper method: extracting parent path from a given path
@@ -174,9 +438,361 @@ public class RouterGateway {
         return lastSlash > 0 ? path.substring(0, lastSlash) : null;
     }
 
-    // 10. Cluster management endpoint: Showing how the metadata is distributed across servers
+    // 9.1 Renaming/moving a file or directory: one entry update on its shard + one rename table entry,
+    // descendants keep their inode keys and shards and follow through path resolution
+    private void handleRename(HttpExchange ex) throws IOException {
+        if (!"POST".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 405, "Method not allowed");
+            return;
+        }
+
+        String srcParam = getQueryParam(ex, "path");
+        String dstParam = getQueryParam(ex, "to");
+        if (srcParam == null || srcParam.isEmpty() || dstParam == null || dstParam.isEmpty()) {
+            sendResponse(ex, 400, "Missing or invalid 'path' or 'to' parameter");
+            return;
+        }
+        String src = normalize(srcParam);
+        String dst = normalize(dstParam);
+        if (src.equals("/") || PathResolver.isUnder(dst, src)) {
+            sendResponse(ex, 400, "Cannot move '" + src + "' to '" + dst + "'");
+            return;
+        }
+
+        synchronized (renameLock) {
+            // 9.1.1 Source must exist, destination must not, destination parent must be a directory
+            String srcInode = resolver.resolve(src);
+            String dstParent = getParentPath(dst);
+            String dstParentInode = resolver.resolve(dstParent);
+            try {
+                if (httpRequest(statUrl(srcInode), "GET").getStatus() != 200) {
+                    sendResponse(ex, 404, "Path not found: " + src);
+                    return;
+                }
+                if (httpRequest(statUrl(resolver.resolve(dst)), "GET").getStatus() != 404) {
+                    sendResponse(ex, 409, "Path already exists: " + dst);
+                    return;
+                }
+                Reply parent = httpRequest(statUrl(dstParentInode), "GET");
+                if (parent.getStatus() != 200 || !parent.getBody().contains("Type: dir")) {
+                    sendResponse(ex, 404, "Parent directory '" + dstParent + "' does not exist");
+                    return;
+                }
+            } catch (IOException e) {
+                sendResponse(ex, 503, "Backend unavailable: " + e.getMessage());
+                return;
+            }
+
+            // 9.1.2 Recording the rename first, so a crash cannot leave the entry under a parent nobody can resolve
+            String oldDstInode = resolver.resolve(dst);
+            Map<String, String> oldMappings = resolver.mappings();
+            resolver.rename(src, dst);
+            saveRenames();
+
+            // 9.1.3 Every server learns the new epoch, so nobody resolving with the old table gets in any more,
+            // and waits out the leases on keys whose path changed: src's subtree and what dst meant before.
+            // The table and the entry's move (9.1.5) are two steps, not one: until the move, a listing of
+            // the old parent still shows the entry (under its new name), and none of the new parent does
+            Reply reply = pushEpoch(srcInode + "\n" + oldDstInode)
+                    ? null : new Reply(503, "Could not reach every server, rename undone");
+
+            // 9.1.4 A create at dst may have got in between the first check and the push
+            if (reply == null) {
+                try {
+                    if (httpRequest(statUrl(oldDstInode), "GET").getStatus() != 404) {
+                        reply = new Reply(409, "Path already exists: " + dst);
+                    }
+                } catch (IOException e) {
+                    reply = new Reply(503, "Backend unavailable: " + e.getMessage());
+                }
+            }
+
+            // 9.1.5 Moving the single entry under its new parent on its own shard
+            if (reply == null) {
+                String backend = pickBackendForWrite(srcInode);
+                String targetUrl = backend + "/rename?path=" + URLEncoder.encode(srcInode, "UTF-8")
+                        + "&parent=" + URLEncoder.encode(dstParentInode, "UTF-8");
+                try {
+                    reply = httpRequest(targetUrl, "POST", null, false, placementEpoch());
+                } catch (IOException e) {
+                    reply = new Reply(503, "Backend unavailable: " + backend);
+                }
+            }
+            if (reply.getStatus() != 200) {
+                // undo as a new version, so clients that fetched the renamed table are sent back too
+                resolver.load(resolver.getVersion() + 1, oldMappings);
+                saveRenames();
+                pushEpoch("");
+                sendResponse(ex, reply.getStatus(), reply.getBody());
+                return;
+            }
+        }
+
+        System.out.println("[Router] Renamed '" + src + "' -> '" + dst + "'");
+        watches.renamed(src, dst);
+        sendResponse(ex, 200, "Renamed: " + src + " -> " + dst);
+    }
+
+    // 9.1.6 Dropping the rename table entries of a removed path, so the table only holds live renames;
+    // the new version reaches the servers before anyone can reuse the freed keys with the old table
+    private void forgetRenames(String path) {
+        synchronized (renameLock) {
+            if (resolver.forget(path)) {
+                saveRenames();
+                pushEpoch("");
+            }
+        }
+    }
+
+    // Helper method: /stat URL on the shard owning an inode key
+    private String statUrl(String inode) throws UnsupportedEncodingException {
+        return pickBackendForRead(inode) + "/stat?path=" + URLEncoder.encode(inode, "UTF-8");
+    }
+
+    // 9.2 Loading the rename table when the router starts
+    private void loadRenames() {
+        try {
+            Path file = Paths.get(RENAME_FILE);
+            if (!Files.exists(file)) return;
+
+            long version = 0;
+            Map<String, String> mappings = new HashMap<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\\|"); // each line: logical|inode, or version|n
+                if (parts.length != 2) continue;
+                if ("version".equals(parts[0])) {
+                    version = Long.parseLong(parts[1]);
+                } else {
+                    mappings.put(parts[0], parts[1]);
+                }
+            }
+            resolver.load(version, mappings);
+            System.out.println("[Router] Loaded " + mappings.size() + " renamed paths");
+        } catch (Exception e) {
+            System.out.println("[Router] No rename table found or error loading: " + e.getMessage());
+        }
+    }
+
+    // 9.3 Saving the rename table: written to a temp file first, then moved over the old one
+    private void saveRenames() {
+        try {
+            Path file = Paths.get(RENAME_FILE);
+            Files.createDirectories(file.getParent());
+            Path tmp = Paths.get(RENAME_FILE + ".tmp");
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+                writer.printf("version|%d%n", resolver.getVersion());
+                for (Map.Entry<String, String> e : resolver.mappings().entrySet()) {
+                    writer.printf("%s|%s%n", e.getKey(), e.getValue());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.err.println("[Router] Error saving rename table: " + e.getMessage());
+        }
+    }
+
+    // 9.4 Placement map: lets smart clients hash paths themselves and call the owning shard directly
+    // format: "epoch <n>" followed by one "backend <index> <url>" line per server, in hash order,
+    // and one "rename <logical> <inode>" line (URL-encoded) per entry of the rename table
+    private void handlePlacement(HttpExchange ex) throws IOException {
+        if (!"GET".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 405, "Method not allowed");
+            return;
+        }
+
+        // the epoch is read before the table: a rename in between gives a newer table under an older
+        // epoch, which servers turn away, never an older table under the newer epoch
+        StringBuilder sb = new StringBuilder();
+        sb.append("epoch ").append(placementEpoch()).append("\n");
+        for (int i = 0; i < backends.size(); i++) {
+            sb.append("backend ").append(i).append(" ").append(backends.get(i)).append("\n");
+        }
+        for (Map.Entry<String, String> e : resolver.mappings().entrySet()) {
+            sb.append("rename ").append(URLEncoder.encode(e.getKey(), "UTF-8"))
+                    .append(" ").append(URLEncoder.encode(e.getValue(), "UTF-8")).append("\n");
+        }
+        sendResponse(ex, 200, sb.toString());
+    }
+
+    // Helper method: the epoch is the rename table's version, so it only grows and servers can tell an
+    // older map from a newer one; a changed backend list is caught by the servers' ownership check
+    private long placementEpoch() {
+        return resolver.getVersion();
+    }
+
+    // 9.4.1 Telling every server the current epoch, requests made with an older map are turned away
+    // from then on; revoke lists inode key prefixes whose leases must be waited out first (one per line).
+    // False if a server could not be told
+    private boolean pushEpoch(String revoke) {
+        long epoch = placementEpoch();
+        Map<String, Reply> replies = callBackends(backends, backend ->
+                httpRequest(backend + "/epoch?epoch=" + epoch, "POST", revoke));
+        for (Map.Entry<String, Reply> e : replies.entrySet()) {
+            if (e.getValue().getStatus() != 200) {
+                System.err.println("[Router] Could not push placement epoch " + epoch + " to " + e.getKey());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 9.5 Bloom filters: POST /bloom?server=<id> carries the bits a server flipped, GET shows the copies
+    private void handleBloom(HttpExchange ex) throws IOException {
+        if ("GET".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 200, filters.stats());
+            return;
+        }
+        if (!"POST".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 405, "Method not allowed");
+            return;
+        }
+        String server = getQueryParam(ex, "server");
+        String body = readStreamFully(ex.getRequestBody());
+        try {
+            if (server == null || !filters.applyPush(Integer.parseInt(server) - 1, body)) {
+                sendResponse(ex, 400, "Unknown server: " + server);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            sendResponse(ex, 400, "Malformed bloom filter update");
+            return;
+        }
+        sendResponse(ex, 200, "ok");
+    }
+
+    // 9.6 Read coalescing metrics
+    private void handleCoalescing(HttpExchange ex) throws IOException {
+        sendResponse(ex, 200, "=== Read Coalescing ===\n\n" + reads.stats());
+    }
+
+    // 9.7 Watching: GET /watch?path=/a[&recursive=true][&since=<id>] streams the changes of /a's
+    // entries (or of its whole subtree); a reconnecting client sends the last id back as since
+    // or Last-Event-ID. Not behind admission control, a stream is open for as long as the client likes
+    private void handleWatch(HttpExchange ex) throws IOException {
+        if (!"GET".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 405, "Method not allowed");
+            return;
+        }
+        String path = getQueryParam(ex, "path");
+        if (path == null || path.isEmpty()) {
+            sendResponse(ex, 400, "Missing or invalid 'path' parameter");
+            return;
+        }
+        String since = getQueryParam(ex, "since");
+        if (since == null) {
+            since = ex.getRequestHeaders().getFirst("Last-Event-ID");
+        }
+        watches.watch(ex, normalize(path), "true".equals(getQueryParam(ex, "recursive")), since);
+    }
+
+    // 9.8 Finding entries: GET /find?path=/a&name=*.log&type=file&mtime=..<ms>[&limit=n] (see FindQuery).
+    // Every backend evaluates the predicates on its own entries and streams back only the matches;
+    // the backends are searched at the same time and their matches passed on as they arrive, with
+    // logical paths. Lines are "<type> <size> <mtime> <path>", a backend that could not be searched
+    // adds "# incomplete: ..." at the end
+    private void handleFind(HttpExchange ex) throws IOException {
+        if (!"GET".equals(ex.getRequestMethod())) {
+            sendResponse(ex, 405, "Method not allowed");
+            return;
+        }
+        FindQuery find;
+        try {
+            find = FindQuery.parse(key -> getQueryParam(ex, key));
+        } catch (IllegalArgumentException e) {
+            sendResponse(ex, 400, e.getMessage());
+            return;
+        }
+        String path = normalize(getQueryParam(ex, "path"));
+        String scope = String.join("\n", resolver.subtreeScope(path));
+
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        ex.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8))) {
+            AtomicInteger sent = new AtomicInteger();
+            Map<String, Reply> replies = callBackends(backends, backend -> findOn(backend, find, scope, out, sent));
+            for (Map.Entry<String, Reply> e : replies.entrySet()) {
+                if (e.getValue().getStatus() != 200) {
+                    out.write("# incomplete: " + e.getKey() + " " + e.getValue().getBody() + "\n");
+                }
+            }
+            System.out.println("[Router] Find below '" + path + "': " + Math.min(sent.get(), find.limit()) + " matches");
+        }
+    }
+
+    // 9.8.1 Searching one backend, its matches are written out as they are read; only errors talking
+    // to the backend count against its health, a client that went away is not the backend's fault
+    private Reply findOn(String backend, FindQuery find, String scope, Writer out, AtomicInteger sent) throws IOException {
+        if (!health.allow(backend)) {
+            return new Reply(503, "Circuit open");
+        }
+        HttpURLConnection conn = (HttpURLConnection) new URL(backend + "/find?" + find.toParams()).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setConnectTimeout(health.connectTimeout(backend));
+        conn.setReadTimeout(health.readTimeout(backend, false));
+        conn.setDoOutput(true);
+        try {
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(scope.getBytes(StandardCharsets.UTF_8));
+            }
+            int status = conn.getResponseCode();
+            if (status != 200) {
+                return new Reply(status, conn.getErrorStream() == null ? "status " + status : readStreamFully(conn.getErrorStream()));
+            }
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("# ")) {
+                        return new Reply(500, line.substring(2)); // the backend's scan failed, what came so far is partial
+                    }
+                    String[] parts = line.split(" ", 4); // type size mtime path
+                    if (parts.length != 4) continue;
+                    String logical = resolver.toLogical(parts[3]);
+                    if (!find.nameMatches(FindQuery.nameOf(logical))) continue; // renamed: the server could not tell
+                    if (sent.incrementAndGet() > find.limit()) break;
+                    try {
+                        synchronized (out) {
+                            out.write(parts[0] + " " + parts[1] + " " + parts[2] + " " + logical + "\n");
+                            if (!in.ready()) {
+                                out.flush(); // what the backend has sent so far goes on to the client
+                            }
+                        }
+                    } catch (IOException e) {
+                        return new Reply(499, "Client went away: " + e.getMessage());
+                    }
+                }
+            }
+            return new Reply(200, "");
+        } catch (IOException e) {
+            health.failure(backend);
+            throw e;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // 10. Cluster management endpoint: Showing how the metadata is distributed across servers,
+    // as counts per server; ?full=true lists every entry of every server
     private void chkdist(HttpExchange ex) throws IOException {
         StringBuilder sb = new StringBuilder("=== Cluster Metadata Distribution ===\n\n");
+        if (!"true".equals(getQueryParam(ex, "full"))) {
+            Map<String, Reply> replies = callBackends(backends, backend -> httpRequest(backend + "/stats", "GET"));
+            for (int i = 0; i < backends.size(); i++) {
+                String backend = backends.get(i);
+                Reply reply = replies.get(backend);
+                sb.append("Server ").append(i + 1).append(" (").append(backend).append("): ");
+                if (reply.getStatus() != 200) {
+                    sb.append("unreachable\n");
+                    continue;
+                }
+                Map<String, Long> counters = parseStats(reply.getBody(), null, null, null);
+                sb.append(counters.getOrDefault("entries", 0L)).append(" entries (")
+                        .append(counters.getOrDefault("dirs", 0L)).append(" dirs, ")
+                        .append(counters.getOrDefault("files", 0L)).append(" files)\n");
+            }
+            sendResponse(ex, 200, sb.toString());
+            return;
+        }
+
         // 10.1 Querying each server's dump endpoint to see what they store
         for (int i = 0; i < backends.size(); i++) {
             String backend = backends.get(i);
@@ -191,24 +807,109 @@ public class RouterGateway {
         sendResponse(ex, 200, sb.toString());
     }
 
-    // 11. Cluster management endpoint: Showing the cluster status + health info
-    private void clusterStatus(HttpExchange ex) throws IOException {
-        StringBuilder sb = new StringBuilder("=== Cluster Status ===\n\n");
-        sb.append("Router: http://localhost:").append(port).append("\n");
-        sb.append("Backend servers:\n");
+    // 10.2 Cluster-wide statistics: every server's counters, fetched in parallel and added up
+    private void handleStats(HttpExchange ex) throws IOException {
+        Map<String, Reply> replies = callBackends(backends, backend -> httpRequest(backend + "/stats", "GET"));
 
-        // 11.1 Checking each server's health
+        Map<String, Long> total = new TreeMap<>();
+        Map<String, Long> dirSizes = new HashMap<>();
+        Map<String, long[]> hotPaths = new HashMap<>();
+        Map<String, long[]> hotDirs = new HashMap<>();
+        List<long[]> perServer = new ArrayList<>(); // {entries, requests}, null when unreachable
+        StringBuilder servers = new StringBuilder();
         for (int i = 0; i < backends.size(); i++) {
             String backend = backends.get(i);
-            sb.append("  Server ").append(i + 1).append(": ").append(backend);
+            Reply reply = replies.get(backend);
+            servers.append("  Server ").append(i + 1).append(" (").append(backend).append("): ");
+            if (reply.getStatus() != 200) {
+                servers.append("unreachable\n");
+                continue;
+            }
+            Map<String, Long> counters = parseStats(reply.getBody(), dirSizes, hotPaths, hotDirs);
+            counters.forEach((name, value) -> total.merge(name, value, Long::sum));
+            long entries = counters.getOrDefault("entries", 0L), requests = counters.getOrDefault("requests", 0L);
+            perServer.add(new long[] { entries, requests });
+            servers.append(entries).append(" entries, ").append(requests).append(" requests\n");
+        }
 
-            try {
-                String health = httpCall(backend + "/dump", "GET");
-                sb.append(" Alive\n");
-            } catch (Exception e) {
-                sb.append("Unreachable: ").append(e.getMessage()).append(")\n");
+        StringBuilder sb = new StringBuilder("=== Cluster Statistics ===\n\n");
+        sb.append(String.format("Entries: %d (%d dirs, %d files), %d bytes of metadata%n",
+                total.getOrDefault("entries", 0L), total.getOrDefault("dirs", 0L),
+                total.getOrDefault("files", 0L), total.getOrDefault("bytes", 0L)));
+        sb.append("Requests: ").append(total.getOrDefault("requests", 0L));
+        for (Map.Entry<String, Long> e : total.entrySet()) {
+            if (e.getKey().startsWith("requests-")) {
+                sb.append(", ").append(e.getKey().substring("requests-".length())).append(" ").append(e.getValue());
             }
         }
+        sb.append("\n\nServers:\n").append(servers);
+
+        // 10.2.1 Skew: the busiest server compared to the average, 1.00 is perfectly even
+        sb.append(String.format("Skew (max / mean): entries %.2f, requests %.2f%n",
+                skew(perServer, 0), skew(perServer, 1)));
+
+        // 10.2.2 Children of a directory can be on every server, so sizes add up across servers; each
+        // server reports only its largest directories, so a sum can miss servers and is a lower bound
+        sb.append("\nLargest directories (entries):\n");
+        dirSizes.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue())).limit(10)
+                .forEach(e -> sb.append("  ").append(e.getValue()).append("  ").append(resolver.toLogical(e.getKey())).append("\n"));
+        appendHot(sb, "Hot paths", hotPaths);
+        appendHot(sb, "Hot directories", hotDirs);
+        sendResponse(ex, 200, sb.toString());
+    }
+
+    // Helper method: reading a server's /stats answer; counters are returned, the per-key lines are
+    // added to the given maps (which may be null when only the counters are wanted)
+    private static Map<String, Long> parseStats(String body, Map<String, Long> dirSizes,
+                                                Map<String, long[]> hotPaths, Map<String, long[]> hotDirs) {
+        Map<String, Long> counters = new HashMap<>();
+        for (String line : body.split("\n")) {
+            String[] parts = line.split(" ", 2);
+            if (parts.length < 2) continue;
+            if ("dir-size".equals(parts[0])) {
+                String[] rest = parts[1].split(" ", 2);
+                if (dirSizes != null) dirSizes.merge(rest[1], Long.parseLong(rest[0]), Long::sum);
+            } else if ("hot-path".equals(parts[0]) || "hot-dir".equals(parts[0])) {
+                String[] rest = parts[1].split(" ", 3); // count error path
+                Map<String, long[]> hot = "hot-path".equals(parts[0]) ? hotPaths : hotDirs;
+                if (hot != null) {
+                    long[] sum = hot.computeIfAbsent(rest[2], k -> new long[2]);
+                    sum[0] += Long.parseLong(rest[0]);
+                    sum[1] += Long.parseLong(rest[1]);
+                }
+            } else {
+                counters.put(parts[0], Long.parseLong(parts[1].trim()));
+            }
+        }
+        return counters;
+    }
+
+    private static double skew(List<long[]> perServer, int column) {
+        long max = 0, sum = 0;
+        for (long[] values : perServer) {
+            max = Math.max(max, values[column]);
+            sum += values[column];
+        }
+        return sum == 0 ? 1.0 : (double) max * perServer.size() / sum;
+    }
+
+    private void appendHot(StringBuilder sb, String title, Map<String, long[]> hot) {
+        sb.append("\n").append(title).append(" (requests, +/- overcount):\n");
+        hot.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0])).limit(10)
+                .forEach(e -> sb.append("  ").append(e.getValue()[0]).append(" (+/- ").append(e.getValue()[1])
+                        .append(")  ").append(resolver.toLogical(e.getKey())).append("\n"));
+    }
+
+    // 11. Cluster management endpoint: Showing the cluster status + health info
+    private void clusterStatus(HttpExchange ex) throws IOException {
+        StringBuilder sb = new StringBuilder("=== Cluster Status ===\n\n");
+        sb.append("Router: http://localhost:").append(port).append("\n");
+        sb.append("Backend servers:\n");
+
+        // 11.1 Each server's health, as seen by the background prober (no request is sent here)
+        sb.append(health.status());
 
         sendResponse(ex, 200, sb.toString());
     }
@@ -234,6 +935,7 @@ public class RouterGateway {
         if (path == null || path.isEmpty()) {
             path = "/";
         }
+        path = normalize(path);
 
         try {
             // Collect all metadata from all servers
@@ -243,7 +945,11 @@ public class RouterGateway {
                 try {
                     String dump = httpCall(backend + "/dump", "GET");
                     List<MetadataEntry> serverEntries = parseDump(dump);
-                    allEntries.addAll(serverEntries); // append all entries obtained from server x to allEntries
+                    for (MetadataEntry entry : serverEntries) {
+                        // dumps list inode keys, the tree shows logical paths
+                        String parent = entry.parent != null ? resolver.toLogical(entry.parent) : null;
+                        allEntries.add(new MetadataEntry(resolver.toLogical(entry.path), entry.type, parent, entry.timestamp));
+                    }
                 } catch (IOException e) {
                     System.err.println("[Router] Error getting dump from " + backend + ": " + e.getMessage());
                 }
@@ -419,31 +1125,89 @@ public class RouterGateway {
         }
     }
 
-    // Utility method: making a http call to a backend server
-    private static String httpCall(String url, String method) throws IOException {
+    // Utility method: making a http call to a backend server (bulk reads such as /dump)
+    private String httpCall(String url, String method) throws IOException {
+        return httpRequest(url, method, null, false).getBody();
+    }
+
+    // Utility method: making a http call to a backend server, keeping the status code;
+    // single-entry reads are quick, writes may wait for leases and batches take time
+    private Reply httpRequest(String url, String method) throws IOException {
+        return httpRequest(url, method, null, "GET".equals(method));
+    }
+
+    private Reply httpRequest(String url, String method, String body) throws IOException {
+        return httpRequest(url, method, body, false);
+    }
+
+    private Reply httpRequest(String url, String method, String body, boolean quick) throws IOException {
+        return httpRequest(url, method, body, quick, -1);
+    }
+
+    // epoch >= 0: sent as the placement epoch the path was resolved with, the backend answers 421 if it is outdated
+    private Reply httpRequest(String url, String method, String body, boolean quick, long epoch) throws IOException {
+        // A backend whose circuit is open fails at once instead of after a timeout
+        String backend = backendOf(url);
+        if (!health.allow(backend)) {
+            throw new IOException("Circuit open for " + backend);
+        }
+
         HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
         conn.setRequestMethod(method);
-        conn.setConnectTimeout(3000); // 3 sec connection timeout
-        conn.setReadTimeout(5000); // 5 sec read timeout
+        conn.setConnectTimeout(health.connectTimeout(backend)); // adapts to the backend's latency
+        conn.setReadTimeout(health.readTimeout(backend, quick));
+        if (epoch >= 0) {
+            conn.setRequestProperty(MetadataServer.PLACEMENT_HEADER, String.valueOf(epoch));
+        }
+        long started = System.nanoTime();
+        long askedAt = System.currentTimeMillis(); // the backend's X-Bloom-Seq is no older than this
 
         try {
+            if (body != null) {
+                conn.setDoOutput(true);
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
             int responseCode = conn.getResponseCode();
+            String bloomSeq = conn.getHeaderField(MetadataServer.BLOOM_SEQ_HEADER);
+            if (bloomSeq != null) {
+                filters.confirm(backend, Long.parseLong(bloomSeq), askedAt);
+            }
+            String leaseWait = conn.getHeaderField(MetadataServer.LEASE_WAIT_HEADER);
+            if (leaseWait != null) {
+                admission.waitedFor(Long.parseLong(leaseWait) * 1_000_000); // not this request being slow, see AdmissionController
+            }
 
             // Getting the response stream: success or error
             InputStream inputStream = (responseCode >= 200 && responseCode < 300)
                     ? conn.getInputStream()
                     : conn.getErrorStream();
 
-            if (inputStream == null) {
-                return "No response body (status: " + responseCode + ")";
-            }
-
-            return readStreamFully(inputStream);
+            Reply reply = inputStream == null
+                    ? new Reply(responseCode, "No response body (status: " + responseCode + ")")
+                    : new Reply(responseCode, readStreamFully(inputStream));
+            health.success(backend, (System.nanoTime() - started) / 1_000_000, quick);
+            return reply;
+        } catch (IOException e) {
+            health.failure(backend); // refused, timed out or cut off: counts towards opening the circuit
+            throw e;
         } finally {
             conn.disconnect();
         }
     }
 
+    // Helper method: the backend a request URL points at
+    private String backendOf(String url) {
+        for (String backend : backends) {
+            if (url.startsWith(backend + "/")) {
+                return backend;
+            }
+        }
+        return url;
+    }
+
     // Utility method: reading all data from an inputstream into a string
     private static String readStreamFully(InputStream in) throws IOException {
         ByteArrayOutputStream result = new ByteArrayOutputStream();
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client for the binary protocol (see RpcServer for the frame layout). Calls do not wait for each
+// other: every request gets an id, a reader thread completes the matching future when its response
+// arrives, so many requests can be in flight on the one connection.
+public class RpcClient implements Closeable {
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Reply>> inFlight = new ConcurrentHashMap<>();
+    private final ByteBuffer frame = ByteBuffer.allocate(4 + RpcServer.REQUEST_HEADER + 0xffff); // reused for every request
+
+    // 1. Constructor: connecting and starting the reader thread
+    public RpcClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        Thread reader = new Thread(this::readLoop, "rpc-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // 2. Main function: e.g. "java RpcClient localhost 9000 stat /home"
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: java RpcClient <host> <port> <mkdir|touch|readdir|stat|rm> <path>");
+            System.exit(1);
+        }
+        byte op = RpcServer.opFor(args[2]);
+        if (op < 0) {
+            System.err.println("Unknown command: " + args[2]);
+            System.exit(1);
+        }
+        try (RpcClient client = new RpcClient(args[0], Integer.parseInt(args[1]))) {
+            Reply reply = client.call(op, args[3]).get(5, TimeUnit.SECONDS);
+            System.out.println(reply.getStatus() + " " + reply.getBody());
+        }
+    }
+
+    // 3. Sending a request without waiting for the ones before it
+    public CompletableFuture<Reply> call(byte op, String path) throws IOException {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length > 0xffff) {
+            throw new IOException("Path too long");
+        }
+
+        long requestId = nextId.incrementAndGet();
+        CompletableFuture<Reply> future = new CompletableFuture<>();
+        inFlight.put(requestId, future); // registered first, the response may arrive before write returns
+
+        synchronized (frame) {
+            frame.clear();
+            frame.putInt(RpcServer.REQUEST_HEADER + pathBytes.length);
+            frame.putLong(requestId);
+            frame.put(op);
+            frame.putShort((short) pathBytes.length);
+            frame.put(pathBytes);
+            try {
+                out.write(frame.array(), 0, frame.position());
+                out.flush();
+            } catch (IOException e) {
+                inFlight.remove(requestId);
+                throw e;
+            }
+        }
+        return future;
+    }
+
+    // 4. Reader thread: matching responses to requests by id
+    private void readLoop() {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < RpcServer.RESPONSE_HEADER || length > RpcServer.MAX_FRAME) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                long requestId = in.readLong();
+                int status = in.readShort();
+                byte[] body = new byte[length - RpcServer.RESPONSE_HEADER];
+                in.readFully(body);
+
+                CompletableFuture<Reply> future = inFlight.remove(requestId);
+                if (future != null) {
+                    future.complete(new Reply(status, new String(body, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            // 4.1 Connection is gone, nothing still in flight can be answered
+            for (CompletableFuture<Reply> future : inFlight.values()) {
+                future.completeExceptionally(e);
+            }
+            inFlight.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Binary protocol served next to the http API. One selector thread does all socket io, the
+// operations run on a worker pool, so a client can keep many requests in flight on one connection.
+//
+// request frame:  int length | long requestId | byte op | short pathLength | path (UTF-8)
+// response frame: int length | long requestId | short status | body (UTF-8)
+//
+// length counts the bytes after the length field itself. Responses can come back in any order,
+// the request id tells the client which request a response belongs to.
+public class RpcServer {
+    // Operation codes, the same operations as the http endpoints
+    public static final byte OP_MKDIR = 1;
+    public static final byte OP_TOUCH = 2;
+    public static final byte OP_READDIR = 3;
+    public static final byte OP_STAT = 4;
+    public static final byte OP_RM = 5;
+
+    static final int REQUEST_HEADER = 8 + 1 + 2; // request id + op + path length
+    static final int RESPONSE_HEADER = 8 + 2; // request id + status
+    static final int MAX_FRAME = 16 * 1024 * 1024; // bigger frames mean a broken or hostile peer
+    private static final int BUFFER_SIZE = 4096; // size of pooled read/write buffers
+    private static final int POOL_SIZE = 1024; // pooled buffers kept around for reuse
+
+    // The operation behind the protocol, e.g. MetadataServer or RouterGateway
+    public interface Handler {
+        Reply handle(byte op, String path);
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final ExecutorService workers;
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>(); // connections with new responses
+    private final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    // 1. Constructor
+    public RpcServer(int port, Handler handler, ExecutorService workers) {
+        this.port = port;
+        this.handler = handler;
+        this.workers = workers;
+    }
+
+    // 2. Opening the listening socket and starting the selector thread
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 128);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        Thread loop = new Thread(this::run, "rpc-selector-" + port);
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    // 3. Selector loop: accepting, reading frames and writing queued responses
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+
+                // 3.1 Worker threads cannot touch interest ops safely, so they queue the connection for us
+                Connection pending;
+                while ((pending = writable.poll()) != null) {
+                    if (pending.key.isValid()) {
+                        pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return; // stop() was called
+            } catch (IOException e) {
+                System.err.println("[Rpc] Selector error on port " + port + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // 4. Accepting a new connection
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    // 5. Reading whatever arrived and dispatching every complete frame
+    private void read(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        if (conn.channel.read(conn.in) < 0) {
+            close(key);
+            return;
+        }
+
+        ByteBuffer in = conn.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < REQUEST_HEADER || length > MAX_FRAME) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                break; // rest of the frame has not arrived yet
+            }
+
+            // 5.1 Decoding the frame straight out of the read buffer
+            in.getInt();
+            long requestId = in.getLong();
+            byte op = in.get();
+            int pathLength = in.getShort() & 0xffff;
+            if (pathLength != length - REQUEST_HEADER) {
+                throw new IOException("Invalid path length: " + pathLength);
+            }
+            String path = new String(in.array(), in.arrayOffset() + in.position(), pathLength, StandardCharsets.UTF_8);
+            in.position(in.position() + pathLength);
+
+            dispatch(conn, requestId, op, path);
+        }
+        in.compact();
+
+        // 5.2 Growing the buffer only when a single frame does not fit into it
+        if (!in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_FRAME + 4));
+            in.flip();
+            bigger.put(in);
+            conn.in = bigger;
+        }
+    }
+
+    // 6. Running the operation on a worker and queueing the response frame for the selector thread
+    private void dispatch(Connection conn, long requestId, byte op, String path) {
+        try {
+            workers.execute(() -> {
+                Reply reply;
+                try {
+                    reply = handler.handle(op, path);
+                } catch (Exception e) {
+                    reply = new Reply(500, "Error: " + e.getMessage());
+                }
+                conn.out.add(encode(requestId, reply));
+                writable.add(conn);
+                selector.wakeup();
+            });
+        } catch (RejectedExecutionException e) {
+            // this is the selector thread, so it can ask for OP_WRITE itself; queued in writable, the
+            // rejection would wait until some other socket event ends the next select()
+            conn.out.add(encode(requestId, new Reply(503, "Server overloaded or shutting down, retry later")));
+            if (conn.key.isValid()) {
+                conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    // 7. Writing queued responses, as much as the socket takes
+    private void write(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        ByteBuffer head;
+        while ((head = conn.out.peek()) != null) {
+            conn.channel.write(head);
+            if (head.hasRemaining()) {
+                return; // socket buffer full, continue when it is writable again
+            }
+            conn.out.poll();
+            recycle(head);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Helper method: encoding a response frame into a pooled buffer
+    private ByteBuffer encode(long requestId, Reply reply) {
+        byte[] body = reply.getBody() == null ? new byte[0] : reply.getBody().getBytes(StandardCharsets.UTF_8);
+        int length = RESPONSE_HEADER + body.length;
+
+        ByteBuffer buf = take(4 + length);
+        buf.putInt(length);
+        buf.putLong(requestId);
+        buf.putShort((short) reply.getStatus());
+        buf.put(body);
+        buf.flip();
+        return buf;
+    }
+
+    // Helper method: small frames reuse pooled buffers instead of allocating per response
+    private ByteBuffer take(int size) {
+        if (size > BUFFER_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buf = bufferPool.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private void recycle(ByteBuffer buf) {
+        if (buf.capacity() == BUFFER_SIZE) {
+            bufferPool.offer(buf);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Helper method: mapping between operation codes and the http endpoint names
+    public static byte opFor(String name) {
+        switch (name) {
+            case "mkdir":   return OP_MKDIR;
+            case "touch":   return OP_TOUCH;
+            case "readdir": return OP_READDIR;
+            case "stat":    return OP_STAT;
+            case "rm":      return OP_RM;
+            default:        return -1;
+        }
+    }
+
+    public static String endpointFor(byte op) {
+        switch (op) {
+            case OP_MKDIR:   return "/mkdir";
+            case OP_TOUCH:   return "/touch";
+            case OP_READDIR: return "/readdir";
+            case OP_STAT:    return "/stat";
+            case OP_RM:      return "/rm";
+            default:         return null;
+        }
+    }
+
+    public static boolean isWrite(byte op) {
+        return op == OP_MKDIR || op == OP_TOUCH || op == OP_RM;
+    }
+
+    // 8. Stopping the selector thread and the workers
+    public void stop() {
+        running = false;
+        try {
+            if (selector != null) selector.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        workers.shutdown();
+    }
+
+    // Inner class: per connection state, the read buffer is reused for every frame on the connection
+    private static class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The router's copies of the backends' bloom filters. A lookup that misses the owning backend's
+// filter is answered with 404 by the router itself. Copies are kept fresh by the servers pushing
+// flipped bits, with a periodic pull as a safety net; until the first sync a backend is always asked.
+// Keys can be created past the router (smart clients, the binary protocol), so a copy is only used
+// while it is known to be current: the server's sequence number, sent with every answer and push,
+// was not ahead of the copy within the last BLOOM_FRESH_MS. Otherwise the lookup is forwarded.
+// That time is when the server stated its number, not when it got here: a push says when it was
+// built ("at <ms>" first line), and for an answer or a pull the time the request went out is used,
+// which is never later, so a slow delivery cannot make an old copy look current.
+public class ShardFilters {
+    private static final long PULL_INTERVAL_MS = 5000; // pull changes from every backend this often
+    private static final long PENDING_MS = 30000; // how long a key created through the router is trusted
+    private static final long FRESH_MS = Long.parseLong(System.getenv().getOrDefault("BLOOM_FRESH_MS", "100"));
+
+    private final List<String> backends;
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService puller;
+
+    // 1. Constructor: starting with unknown filters, the first pull fills them in
+    public ShardFilters(List<String> backends) {
+        this.backends = backends;
+        for (String backend : backends) {
+            shards.put(backend, new Shard());
+        }
+        this.puller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bloom-pull");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        puller.scheduleWithFixedDelay(this::pullAll, 0, PULL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // 2. Lookup: true only if the backend's filter proves the key is not there
+    public boolean definitelyAbsent(String backend, String key) {
+        Shard shard = shards.get(backend);
+        BloomFilter filter = shard.filter;
+        if (filter == null) {
+            return false; // not synced yet, cannot tell
+        }
+        if (!isCurrent(shard)) {
+            return false; // the server changed since, or we have not heard from it lately
+        }
+        Long pendingUntil = shard.pending.get(key);
+        if (pendingUntil != null && pendingUntil > System.currentTimeMillis()) {
+            return false; // created through us, its bits may not have arrived yet
+        }
+        if (filter.mightContain(key)) {
+            return false;
+        }
+        shard.negatives.incrementAndGet();
+        return true;
+    }
+
+    // 3. A key was just created on a backend: trust it until the backend's update has surely arrived
+    public void created(String backend, String key) {
+        Shard shard = shards.get(backend);
+        long now = System.currentTimeMillis();
+        shard.pending.put(key, now + PENDING_MS);
+        if (shard.pending.size() > 10_000) {
+            shard.pending.values().removeIf(until -> until <= now);
+        }
+    }
+
+    // 3.1 A backend answered a request sent at askedAt with its filter's sequence number: if the copy
+    // has caught up with it, the copy was current at askedAt at the latest
+    public void confirm(String backend, long serverSeq, long askedAt) {
+        Shard shard = shards.get(backend);
+        if (shard == null) {
+            return;
+        }
+        synchronized (shard) {
+            shard.seen = Math.max(shard.seen, serverSeq);
+            if (shard.filter != null && shard.seq >= serverSeq) {
+                shard.confirmedAt = Math.max(shard.confirmedAt, askedAt);
+            }
+        }
+    }
+
+    // 4. Update pushed by a server: "from <seq>", "to <seq>", then "+index"/"-index" lines, or "reset"
+    public boolean applyPush(int serverIndex, String body) {
+        if (serverIndex < 0 || serverIndex >= backends.size()) {
+            return false;
+        }
+        String backend = backends.get(serverIndex);
+        long builtAt = 0; // an old server without the line: never confirms anything
+        if (body.startsWith("at ")) {
+            int end = body.indexOf('\n');
+            builtAt = Long.parseLong(body.substring(3, end < 0 ? body.length() : end).trim());
+            body = end < 0 ? "" : body.substring(end + 1);
+        }
+        if (!applyChanges(shards.get(backend), body, builtAt)) {
+            puller.execute(() -> fullSync(backend)); // gap in the sequence, fetch the whole filter
+        }
+        return true;
+    }
+
+    // 5. Size and accuracy of every copy, for the router's /bloom endpoint
+    public String stats() {
+        StringBuilder sb = new StringBuilder("=== Bloom Filters ===\n\n");
+        for (int i = 0; i < backends.size(); i++) {
+            String backend = backends.get(i);
+            Shard shard = shards.get(backend);
+            BloomFilter filter = shard.filter;
+            sb.append("Server ").append(i + 1).append(" (").append(backend).append("): ");
+            if (filter == null) {
+                sb.append("not synced\n");
+                continue;
+            }
+            sb.append(String.format("seq=%d, current=%s, bits=%d, set=%d, hashes=%d, memory=%d bytes, false-positive-rate=%.6f, "
+                            + "local-404s=%d%n",
+                    shard.seq, isCurrent(shard), filter.getBits(), filter.bitsSet(), filter.getHashes(), filter.memoryBytes(),
+                    filter.falsePositiveRate(), shard.negatives.get()));
+        }
+        return sb.toString();
+    }
+
+    public void stop() {
+        puller.shutdownNow();
+    }
+
+    // Helper method: catching up with every backend, incrementally when possible
+    private void pullAll() {
+        for (String backend : backends) {
+            Shard shard = shards.get(backend);
+            try {
+                if (shard.filter == null) {
+                    fullSync(backend);
+                    continue;
+                }
+                long since;
+                synchronized (shard) {
+                    since = shard.seq;
+                }
+                long askedAt = System.currentTimeMillis();
+                String[] reply = httpGet(backend + "/bloom?since=" + since);
+                if (!"200".equals(reply[0]) || !applyChanges(shard, reply[1], askedAt)) {
+                    fullSync(backend);
+                }
+            } catch (IOException e) {
+                // backend down, keep the last copy: it only ever causes an extra round trip
+            }
+        }
+    }
+
+    private void fullSync(String backend) {
+        Shard shard = shards.get(backend);
+        try {
+            long askedAt = System.currentTimeMillis();
+            String[] reply = httpGet(backend + "/bloom");
+            if (!"200".equals(reply[0])) return;
+            List<String> lines = Arrays.asList(reply[1].split("\n"));
+            long seq = Long.parseLong(lines.get(0).substring("seq ".length()).trim());
+            BloomFilter filter = BloomFilter.decode(lines.subList(1, lines.size()));
+            synchronized (shard) {
+                shard.filter = filter;
+                shard.seq = seq;
+                confirmed(shard, seq, askedAt);
+            }
+            System.out.println("[Router] Synced bloom filter of " + backend + " at seq " + seq);
+        } catch (Exception e) {
+            System.err.println("[Router] Bloom filter sync failed for " + backend + ": " + e.getMessage());
+        }
+    }
+
+    // Helper method: applying flipped bits the server had at time at, false when they do not continue
+    // our sequence number
+    private boolean applyChanges(Shard shard, String body, long at) {
+        String[] lines = body.split("\n");
+        if (lines.length < 2 || !lines[0].startsWith("from ") || !lines[1].startsWith("to ")) {
+            return false;
+        }
+        long from = Long.parseLong(lines[0].substring(5).trim());
+        long to = Long.parseLong(lines[1].substring(3).trim());
+        synchronized (shard) {
+            if (shard.filter == null || from > shard.seq) {
+                return false;
+            }
+            // one line per flip, push and pull can overlap: skip the flips we already have
+            long next = from;
+            for (int i = 2; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (line.isEmpty()) continue;
+                if (next++ < shard.seq) continue;
+                shard.filter.apply(Integer.parseInt(line.substring(1)), line.charAt(0) == '+');
+            }
+            shard.seq = Math.max(shard.seq, to);
+            confirmed(shard, to, at);
+        }
+        return true;
+    }
+
+    // Helper method: true if the copy is known to match the server
+    private static boolean isCurrent(Shard shard) {
+        synchronized (shard) {
+            return shard.seq >= shard.seen && System.currentTimeMillis() - shard.confirmedAt <= FRESH_MS;
+        }
+    }
+
+    // Helper method: the copy matches what the server had at seq (at time at), called with the shard locked
+    private static void confirmed(Shard shard, long seq, long at) {
+        shard.seen = Math.max(shard.seen, seq);
+        if (shard.seq >= shard.seen) {
+            shard.confirmedAt = Math.max(shard.confirmedAt, at);
+        }
+    }
+
+    // Helper method: GET returning {status, body}
+    private static String[] httpGet(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("GET");
+        conn.setConnectTimeout(3000);
+        conn.setReadTimeout(5000);
+        try {
+            int status = conn.getResponseCode();
+            InputStream in = status >= 200 && status < 300 ? conn.getInputStream() : conn.getErrorStream();
+            String body = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return new String[] { String.valueOf(status), body };
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // Inner class: the router's copy of one backend's filter
+    private static class Shard {
+        private volatile BloomFilter filter; // null until the first full sync
+        private long seq; // sequence number the copy corresponds to
+        private long seen; // highest sequence number the server reported
+        private long confirmedAt; // when the server last had what the copy has, by the server's word
+        private final Map<String, Long> pending = new ConcurrentHashMap<>(); // created through us -> trusted until
+        private final AtomicLong negatives = new AtomicLong(); // lookups answered locally
+    }
+}
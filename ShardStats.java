@@ -0,0 +1,174 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Statistics of one shard, kept up to date by every change and every request instead of being
+// computed from the whole map when asked: entries by type, children per directory, bytes of
+// metadata, requests per operation, and the hottest paths and directories (space-saving top-K).
+public class ShardStats {
+    private static final int TRACKED_KEYS = 256; // counters of each top-K, more than reported for accuracy
+    private static final int REPORTED_KEYS = 10;
+
+    private final LongAdder dirs = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder(); // size of the entries as checkpoint lines
+    private final Map<String, Long> children = new ConcurrentHashMap<>(); // directory -> entries below it here
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>(); // operation -> count
+    private final TopK hotPaths = new TopK(TRACKED_KEYS);
+    private final TopK hotDirs = new TopK(TRACKED_KEYS);
+
+    // 1. Changes of the map, called by the server's mutation helpers
+    public void added(String type, String parent, int size) {
+        ("dir".equals(type) ? dirs : files).increment();
+        bytes.add(size);
+        if (parent != null) {
+            children.merge(parent, 1L, Long::sum);
+        }
+    }
+
+    public void removed(String type, String parent, int size) {
+        ("dir".equals(type) ? dirs : files).decrement();
+        bytes.add(-size);
+        if (parent != null) {
+            children.computeIfPresent(parent, (p, n) -> n <= 1 ? null : n - 1); // no counter left for empty ones
+        }
+    }
+
+    // 2. Number of entries on this shard whose parent is dir, O(1)
+    public long childCount(String dir) {
+        return children.getOrDefault(dir, 0L);
+    }
+
+    // 3. A request for path; directory listings count for the directory, everything else for its parent
+    public void accessed(String op, String path, String dir) {
+        requests.computeIfAbsent(op, o -> new LongAdder()).increment();
+        hotPaths.add(path);
+        if (dir != null) {
+            hotDirs.add(dir);
+        }
+    }
+
+    // 4. Report, one "name value" line per counter so the router can add up all shards:
+    // "hot-path <count> <error> <path>": count is at most error too high (space-saving guarantee)
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        long d = dirs.sum(), f = files.sum();
+        sb.append("entries ").append(d + f).append("\n");
+        sb.append("dirs ").append(d).append("\n");
+        sb.append("files ").append(f).append("\n");
+        sb.append("bytes ").append(bytes.sum()).append("\n");
+        long total = 0;
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(requests).entrySet()) {
+            sb.append("requests-").append(e.getKey()).append(" ").append(e.getValue().sum()).append("\n");
+            total += e.getValue().sum();
+        }
+        sb.append("requests ").append(total).append("\n");
+
+        // 4.1 Largest directories: the one place that looks at all directories, still no entry is read
+        List<Map.Entry<String, Long>> sizes = new ArrayList<>();
+        for (Map.Entry<String, Long> e : children.entrySet()) {
+            sizes.add(new AbstractMap.SimpleEntry<>(e.getKey(), e.getValue()));
+        }
+        sizes.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (Map.Entry<String, Long> e : sizes.subList(0, Math.min(REPORTED_KEYS, sizes.size()))) {
+            sb.append("dir-size ").append(e.getValue()).append(" ").append(e.getKey()).append("\n");
+        }
+
+        hotPaths.appendTo(sb, "hot-path", REPORTED_KEYS);
+        hotDirs.appendTo(sb, "hot-dir", REPORTED_KEYS);
+        return sb.toString();
+    }
+
+    // Inner class: space-saving top-K. A fixed number of counters; a key without a counter takes over
+    // the smallest one and inherits its count as the error bound, so heavy hitters are never missed.
+    // Counters sit in buckets of equal count, linked in ascending order (stream-summary), so counting
+    // a key and finding the smallest counter are O(1) instead of a walk over all counters.
+    static class TopK {
+        private final int capacity;
+        private final Map<String, Counter> counters = new HashMap<>();
+        private Bucket smallest; // head of the bucket list, null while empty
+
+        TopK(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized void add(String key) {
+            Counter counter = counters.get(key);
+            if (counter == null) {
+                if (counters.size() < capacity) {
+                    counter = new Counter();
+                } else {
+                    counter = smallest.first; // any counter of the smallest count will do
+                    counters.remove(counter.key);
+                    counter.error = smallest.count;
+                }
+                counter.key = key;
+                counters.put(key, counter);
+            }
+            increment(counter);
+        }
+
+        synchronized void appendTo(StringBuilder sb, String name, int limit) {
+            List<Counter> top = new ArrayList<>(counters.values());
+            top.sort((a, b) -> Long.compare(b.bucket.count, a.bucket.count));
+            for (Counter c : top.subList(0, Math.min(limit, top.size()))) {
+                sb.append(name).append(" ").append(c.bucket.count).append(" ").append(c.error)
+                        .append(" ").append(c.key).append("\n");
+            }
+        }
+
+        // Helper method: moving a counter to the bucket of its count + 1, the next one or a new one after
+        // its own; a new counter (no bucket yet) goes to the bucket of count 1 at the head
+        private void increment(Counter counter) {
+            Bucket from = counter.bucket;
+            Bucket next = from == null ? smallest : from.next;
+            long count = from == null ? 1 : from.count + 1;
+            Bucket to = next;
+            if (to == null || to.count != count) {
+                to = new Bucket(count);
+                to.prev = from;
+                to.next = next;
+                if (next != null) next.prev = to;
+                if (from != null) from.next = to; else smallest = to;
+            }
+            if (from != null) {
+                from.unlink(counter);
+                if (from.first == null) { // empty buckets leave the list
+                    if (from.prev != null) from.prev.next = from.next; else smallest = from.next;
+                    from.next.prev = from.prev; // there is one, the counter just went there
+                }
+            }
+            to.push(counter);
+        }
+
+        private static class Counter {
+            private String key;
+            private long error;
+            private Bucket bucket;
+            private Counter prev, next; // within the bucket
+        }
+
+        private static class Bucket {
+            private final long count;
+            private Bucket prev, next; // ascending count
+            private Counter first;
+
+            private Bucket(long count) {
+                this.count = count;
+            }
+
+            private void push(Counter counter) {
+                counter.bucket = this;
+                counter.prev = null;
+                counter.next = first;
+                if (first != null) first.prev = counter;
+                first = counter;
+            }
+
+            private void unlink(Counter counter) {
+                if (counter.prev != null) counter.prev.next = counter.next; else first = counter.next;
+                if (counter.next != null) counter.next.prev = counter.prev;
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Coalescing of identical requests that are in flight at the same time ("single flight").
+// The first caller for a key makes the call, everyone arriving while it runs waits for the same
+// answer instead of sending their own. Nothing is kept once the call returns, so an answer is
+// never older than the request that is waiting for it.
+public class SingleFlight<V> {
+    private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong(); // calls to run
+    private final AtomicLong executed = new AtomicLong(); // ... that actually made the call
+
+    // One call to make, may fail like a backend request does
+    public interface Call<V> {
+        V apply() throws IOException;
+    }
+
+    // 1. Running the call for key, or joining the one already in flight
+    public V run(String key, Call<V> call) throws IOException {
+        requests.incrementAndGet();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        // 1.1 We are the leader: make the call, hand the result to every waiter, then forget it.
+        // Whatever ends the call (an Error too) completes the future, no waiter is left hanging
+        executed.incrementAndGet();
+        Throwable failure = null;
+        V value = null;
+        try {
+            value = call.apply();
+            return value;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+            if (failure != null) {
+                mine.completeExceptionally(failure);
+            } else {
+                mine.complete(value);
+            }
+        }
+    }
+
+    // 2. Metrics: how many requests were answered by another request's call
+    public String stats() {
+        long total = requests.get();
+        long calls = executed.get();
+        long shared = total - calls;
+        double ratio = total == 0 ? 0.0 : (double) shared / total;
+        return String.format("requests=%d, backend-calls=%d, coalesced=%d, coalescing-ratio=%.4f, in-flight=%d%n",
+                total, calls, shared, ratio, inFlight.size());
+    }
+
+    // Helper method: waiting for the leader, its failure becomes ours
+    private static <V> V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a coalesced request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+// Change notifications of one metadata server, streamed to watchers as server-sent events:
+//
+//   id: <sequence number>
+//   event: create | remove | update | sync | reset
+//   data: <dir|file> <path>
+//
+// Every change gets the next sequence number and is kept in a ring buffer, so a watcher that
+// reconnects with since=<last id> gets what it missed. A watcher that reads slower than changes
+// happen is not sent every event: pending events are coalesced per path (only the latest counts),
+// and if too many paths pile up they are dropped for a "reset", after which the watcher re-lists.
+// Streams are written by their own threads, at most one per stream and at most WATCH_MAX_STREAMS
+// streams (more get 503), not by the request workers, so watches do not hold workers;
+// a change only goes into the ring, each stream's writer takes it from there and runs the filter,
+// so a server's writes do not pay for the watchers.
+public class WatchHub {
+    private static final int BUFFER = Integer.parseInt(System.getenv().getOrDefault("WATCH_BUFFER", "10000")); // events kept for resumption
+    private static final int MAX_PENDING = Integer.parseInt(System.getenv().getOrDefault("WATCH_MAX_PENDING", "1000")); // per slow watcher
+    private static final int MAX_STREAMS = Integer.parseInt(System.getenv().getOrDefault("WATCH_MAX_STREAMS", "2000")); // the router opens one per client stream
+    private static final long HEARTBEAT_MS = 15000; // keeps idle streams open and finds dead watchers
+
+    private final String name; // for log lines
+    private final Event[] ring = new Event[BUFFER];
+    private volatile long seq; // sequence number of the latest event, changed with the ring
+    private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+    private final ExecutorService writers = Executors.newCachedThreadPool(daemon("watch-writer")); // one per stream at most (see schedule), so bounded by MAX_STREAMS
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(daemon("watch-heartbeat"));
+
+    // 1. Constructor
+    public WatchHub(String name) {
+        this.name = name;
+        heartbeat.scheduleWithFixedDelay(() -> watchers.forEach(Watcher::ping),
+                HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // 2. A change, called by the server's mutation helpers: into the ring, and the writers woken up
+    public void publish(String op, String type, String path, String parent) {
+        synchronized (this) {
+            Event event = new Event(seq + 1, op, type, path, parent);
+            ring[(int) (event.seq % BUFFER)] = event;
+            seq = event.seq;
+        }
+        for (Watcher watcher : watchers) {
+            watcher.schedule();
+        }
+    }
+
+    // 3. Starting a stream: events after since are replayed first (since < 0: only new ones), then
+    // it stays open; the handler returns right away and the stream is written from the pool
+    public void watch(HttpExchange exchange, Predicate<Event> filter, long since) throws IOException {
+        if (watchers.size() >= MAX_STREAMS) {
+            exchange.getResponseHeaders().set("Retry-After", AdmissionController.RETRY_AFTER_SECONDS);
+            byte[] body = "Too many watches, retry later".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(503, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0); // chunked, no length
+
+        Watcher watcher = new Watcher(exchange, filter);
+        synchronized (this) { // no change can slip in between the replay and the registration
+            watcher.cursor = since >= 0 ? since : seq; // the writer replays what comes after it from the ring
+            watcher.synced = seq;
+            watchers.add(watcher);
+            watcher.schedule();
+        }
+        System.out.println("[" + name + "] Watch started, " + watchers.size() + " open");
+    }
+
+    public int size() {
+        return watchers.size();
+    }
+
+    public void stop() {
+        heartbeat.shutdownNow();
+        watchers.forEach(Watcher::close);
+        writers.shutdownNow();
+    }
+
+    private static ThreadFactory daemon(String threadName) {
+        return r -> {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Inner class: one change
+    public static class Event {
+        public final long seq;
+        public final String op; // create, remove or update
+        public final String type; // dir or file
+        public final String path;
+        public final String parent;
+
+        Event(long seq, String op, String type, String path, String parent) {
+            this.seq = seq;
+            this.op = op;
+            this.type = type;
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    // Inner class: one open stream and the events not written to it yet
+    private class Watcher {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final Predicate<Event> filter;
+        private long cursor; // last event taken from the ring, only the writer moves it
+        private final LinkedHashMap<String, Event> pending = new LinkedHashMap<>(); // path -> latest event, in seq order
+        private long resetAt = -1; // events up to here were dropped, a reset goes out next
+        private long synced = -1; // first thing written: where the stream starts, so it can be resumed
+        private boolean ping;
+        private boolean draining; // a writer is busy with this stream
+        private volatile boolean closed;
+
+        Watcher(HttpExchange exchange, Predicate<Event> filter) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.filter = filter;
+        }
+
+        // Taking the events since the last look out of the ring, on the writer's thread: filtered here and
+        // coalesced into pending; events overwritten before the writer got to them mean a reset too
+        private void collect() {
+            List<Event> events = new ArrayList<>();
+            long lost = -1;
+            synchronized (WatchHub.this) {
+                if (cursor + 1 < Math.max(1, seq - BUFFER + 1)) {
+                    lost = seq; // missed events are gone, the watcher has to re-list
+                } else {
+                    for (long n = cursor + 1; n <= seq; n++) {
+                        events.add(ring[(int) (n % BUFFER)]);
+                    }
+                }
+                cursor = seq;
+            }
+            synchronized (this) {
+                if (lost >= 0) {
+                    pending.clear();
+                    resetAt = lost;
+                }
+            }
+            for (Event event : events) {
+                if (!filter.test(event)) continue;
+                synchronized (this) {
+                    pending.remove(event.path); // coalescing: a later change of the same path replaces the earlier one
+                    pending.put(event.path, event);
+                    if (pending.size() > MAX_PENDING) {
+                        pending.clear();
+                        resetAt = event.seq;
+                    }
+                }
+            }
+        }
+
+        synchronized void ping() {
+            ping = true;
+            schedule();
+        }
+
+        synchronized void schedule() {
+            if (!draining && !closed) {
+                draining = true;
+                writers.execute(this::drain);
+            }
+        }
+
+        // Writes everything pending, more may arrive while a slow socket write blocks
+        private void drain() {
+            while (true) {
+                collect();
+                StringBuilder sb = new StringBuilder();
+                synchronized (this) {
+                    if (resetAt >= 0) {
+                        sb.append("id: ").append(resetAt).append("\nevent: reset\ndata: missed changes, re-list\n\n");
+                        resetAt = -1;
+                    }
+                    // ids only grow along the stream: the sync goes after the replayed events
+                    for (Event e : pending.values()) {
+                        if (synced >= 0 && e.seq > synced) {
+                            appendSync(sb);
+                        }
+                        sb.append("id: ").append(e.seq).append("\nevent: ").append(e.op)
+                                .append("\ndata: ").append(e.type).append(" ").append(e.path).append("\n\n");
+                    }
+                    pending.clear();
+                    if (synced >= 0) {
+                        appendSync(sb);
+                    }
+                    if (ping) {
+                        sb.append(": ping\n\n");
+                        ping = false;
+                    }
+                    if (closed || (sb.length() == 0 && cursor == seq)) { // a later publish sees draining false
+                        draining = false;
+                        return;
+                    }
+                }
+                if (sb.length() == 0) {
+                    continue; // changes came in meanwhile, none for this watcher so far
+                }
+                try {
+                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException e) {
+                    close(); // watcher went away
+                    return;
+                }
+            }
+        }
+
+        private void appendSync(StringBuilder sb) {
+            sb.append("id: ").append(synced).append("\nevent: sync\ndata: \n\n");
+            synced = -1;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                draining = false;
+            }
+            watchers.remove(this);
+            exchange.close();
+            System.out.println("[" + name + "] Watch closed, " + watchers.size() + " open");
+        }
+    }
+}
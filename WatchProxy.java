@@ -0,0 +1,263 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Router side of /watch. The entries of a directory are spread over all shards, so one client
+// stream is fed by a stream from every backend; events are merged as they come and their inode
+// keys translated to logical paths. The id of each event is the vector of the backends' sequence
+// numbers ("12.40.7"), so a client that reconnects with it resumes every backend where it was.
+// A rename touching the watched path ends the stream with a reset: the client re-lists and watches
+// again, under the new names.
+public class WatchProxy {
+    private static final int MAX_SESSIONS = Integer.parseInt(System.getenv().getOrDefault("WATCH_MAX_SESSIONS", "1000"));
+    private static final int READ_TIMEOUT_MS = 45000; // three missed heartbeats: the backend is gone
+    private static final long RECONNECT_MS = 1000;
+    private static final Set<String> CHANGES = Set.of("create", "remove", "update"); // events whose data has a path
+
+    private final List<String> backends;
+    private final PathResolver resolver;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "watch-reader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 1. Constructor
+    public WatchProxy(List<String> backends, PathResolver resolver) {
+        this.backends = backends;
+        this.resolver = resolver;
+    }
+
+    // 2. Starting a client stream, the handler returns right away and the readers feed the stream
+    public void watch(HttpExchange exchange, String path, boolean recursive, String since) throws IOException {
+        if (sessions.size() >= MAX_SESSIONS) {
+            exchange.getResponseHeaders().set("Retry-After", AdmissionController.RETRY_AFTER_SECONDS);
+            byte[] body = "Too many watches, retry later".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(503, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+            return;
+        }
+
+        long[] seqs = parseVector(since);
+        boolean missed = since != null && !since.isEmpty() && seqs == null; // unusable id: start over
+        if (seqs == null) {
+            seqs = new long[backends.size()];
+            Arrays.fill(seqs, -1);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0); // chunked, no length
+
+        // the subtree is fixed now, renames affecting it end the stream (see renamed)
+        String scope = recursive ? String.join("\n", resolver.subtreeScope(path)) : null;
+        Session session = new Session(exchange, path, resolver.resolve(path), scope, seqs);
+        sessions.add(session);
+        if (missed) {
+            session.emit(-1, -1, "reset", "unknown id, re-list");
+        }
+        for (int i = 0; i < backends.size(); i++) {
+            int index = i;
+            readers.execute(() -> session.follow(index));
+        }
+        System.out.println("[Router] Watch on '" + path + "'" + (recursive ? " (recursive)" : "")
+                + " started, " + sessions.size() + " open");
+    }
+
+    // 3. A rename done by the router: streams whose paths it changes are reset and closed
+    public void renamed(String src, String dst) {
+        for (Session session : sessions) {
+            if (PathResolver.isUnder(session.path, src) || PathResolver.isUnder(src, session.path)
+                    || PathResolver.isUnder(session.path, dst) || PathResolver.isUnder(dst, session.path)) {
+                session.emit(-1, -1, "reset", "renamed " + src + " -> " + dst + ", re-list");
+                session.close();
+            }
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    // Helper method: "12.40.7" -> {12, 40, 7}, an empty part means "not known"; null if unusable
+    private long[] parseVector(String since) {
+        if (since == null || since.isEmpty()) return null;
+        String[] parts = since.split("\\.", -1);
+        if (parts.length != backends.size()) return null;
+        long[] seqs = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                seqs[i] = parts[i].isEmpty() ? -1 : Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return seqs;
+    }
+
+    // Inner class: one client stream and its backend streams
+    private class Session {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final String path; // logical path watched
+        private final String inode; // its inode key
+        private final String scope; // recursive watches: the subtree as inode key prefixes
+        private final long[] seqs; // last id seen per backend
+        private final boolean[] synced; // backends that caught up, one sync goes out when all have
+        private boolean syncSent;
+        private final Map<Integer, HttpURLConnection> connections = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        Session(HttpExchange exchange, String path, String inode, String scope, long[] seqs) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.path = path;
+            this.inode = inode;
+            this.scope = scope;
+            this.seqs = seqs;
+            this.synced = new boolean[seqs.length];
+        }
+
+        // 4. Following one backend's stream, reconnecting where it left off until the client is gone
+        void follow(int index) {
+            String backend = backends.get(index);
+            boolean reconnect = false;
+            while (!closed) {
+                long since;
+                synchronized (this) {
+                    since = seqs[index];
+                }
+                if (reconnect && since < 0) {
+                    emit(-1, -1, "reset", "lost changes of " + backend + ", re-list");
+                }
+                try {
+                    read(index, open(backend, since));
+                } catch (IOException e) {
+                    // backend down or restarted, try again
+                } finally {
+                    HttpURLConnection conn = connections.remove(index);
+                    if (conn != null) conn.disconnect();
+                }
+                reconnect = true;
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private HttpURLConnection open(String backend, long since) throws IOException {
+            String sinceParam = since >= 0 ? "since=" + since : "";
+            URL url = scope != null
+                    ? new URL(backend + "/watch?" + sinceParam)
+                    : new URL(backend + "/watch?path=" + URLEncoder.encode(inode, "UTF-8") + "&" + sinceParam);
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(3000);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            if (scope != null) {
+                conn.setRequestMethod("POST");
+                conn.setDoOutput(true);
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(scope.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return conn;
+        }
+
+        // Helper method: parsing server-sent events, the backend's paths are inode keys
+        private void read(int index, HttpURLConnection conn) throws IOException {
+            connections.put(index, conn);
+            if (closed || conn.getResponseCode() != 200) return;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                long id = -1;
+                String event = null, data = "";
+                String line;
+                while (!closed && (line = in.readLine()) != null) {
+                    if (line.startsWith(":")) {
+                        ping(); // heartbeat, passing it on finds clients that went away
+                    } else if (line.startsWith("id: ")) {
+                        id = Long.parseLong(line.substring(4).trim());
+                    } else if (line.startsWith("event: ")) {
+                        event = line.substring(7).trim();
+                    } else if (line.startsWith("data: ")) {
+                        data = line.substring(6);
+                    } else if (line.isEmpty() && "sync".equals(event)) {
+                        synced(index, id);
+                        id = -1;
+                        event = null;
+                    } else if (line.isEmpty() && event != null) {
+                        int space = data.indexOf(' ');
+                        if (CHANGES.contains(event) && space > 0) { // "<type> <path>", a reset's text is passed on as it is
+                            data = data.substring(0, space) + " " + resolver.toLogical(data.substring(space + 1));
+                        }
+                        emit(index, id, event, data);
+                        id = -1;
+                        event = null;
+                        data = "";
+                    }
+                }
+            }
+        }
+
+        // 5. Writing one event to the client, its id is the vector of all backends' ids
+        synchronized void emit(int index, long id, String event, String data) {
+            if (closed) return;
+            if (index >= 0 && id >= 0) {
+                seqs[index] = id;
+            }
+            StringBuilder sb = new StringBuilder("id: ");
+            for (int i = 0; i < seqs.length; i++) {
+                if (i > 0) sb.append('.');
+                if (seqs[i] >= 0) sb.append(seqs[i]);
+            }
+            sb.append("\nevent: ").append(event).append("\ndata: ").append(data).append("\n\n");
+            write(sb.toString());
+        }
+
+        // 5.1 A backend caught up; after reconnects it says so again, which the client does not need
+        synchronized void synced(int index, long id) {
+            if (id >= 0) {
+                seqs[index] = id;
+            }
+            synced[index] = true;
+            for (boolean s : synced) {
+                if (!s) return;
+            }
+            if (!syncSent) {
+                syncSent = true;
+                emit(-1, -1, "sync", "");
+            }
+        }
+
+        synchronized void ping() {
+            if (!closed) write(": ping\n\n");
+        }
+
+        private void write(String text) {
+            try {
+                out.write(text.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                close(); // client went away
+            }
+        }
+
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            sessions.remove(this);
+            for (HttpURLConnection conn : connections.values()) {
+                conn.disconnect(); // unblocks the readers
+            }
+            exchange.close();
+            System.out.println("[Router] Watch on '" + path + "' closed, " + sessions.size() + " open");
+        }
+    }
+}